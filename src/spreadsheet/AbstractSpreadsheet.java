@@ -1,6 +1,8 @@
 package spreadsheet;
 
+import java.util.ArrayDeque;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Set;
 
@@ -254,27 +256,47 @@ public abstract class AbstractSpreadsheet
     /**
      *  Helper method for getCellsToRecalculate 
      * 
-     * Marks name as visited and recursively follows dependencies of name to new
-     * cells then adds name to list of cells to be recalculated
+     * Marks name as visited and follows dependencies of name to new cells,
+     * adding each cell to the front of the list of cells to be recalculated
+     * once all the cells depending on it have been added. The cells being
+     * visited are kept on an explicit stack rather than the call stack, so
+     * chains of any length can be followed.
      * 
      * If a cycle is detected in the dependencies of name throws CurcularException
      * If an invalid name is contained in names throws InvalidNameException
      */
     private void visit(String start, String name, Set<String> visited, LinkedList<String> changed) throws CircularException, InvalidNameException
     {
+        // the path of cells being visited, and the dependents of each cell on
+        // it which are still to be followed
+        ArrayDeque<String> path = new ArrayDeque<String>();
+        ArrayDeque<Iterator<String>> dependents = new ArrayDeque<Iterator<String>>();
+
         visited.add(name);
-        for (String n : getDirectDependents(name))
+        path.push(name);
+        dependents.push(getDirectDependents(name).iterator());
+        while (!path.isEmpty())
         {
+            Iterator<String> remaining = dependents.peek();
+            if (!remaining.hasNext())
+            {
+                dependents.pop();
+                changed.addFirst(path.pop());
+                continue;
+            }
+
+            String n = remaining.next();
             if (n.equals(start))
             {
-                throw new CircularException(name);
+                throw new CircularException(path.peek());
             }
             else if (!visited.contains(n))
             {
-                visit(start, n, visited, changed);
+                visited.add(n);
+                path.push(n);
+                dependents.push(getDirectDependents(n).iterator());
             }
         }
-        changed.addFirst(name);
     }
 
     /**
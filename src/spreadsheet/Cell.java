@@ -1,7 +1,7 @@
 package spreadsheet;
 
 import ssUtils.Formula;
-import ssUtils.Lookup;
+import ssUtils.IntLookup;
 
 public class Cell
 {
@@ -19,8 +19,24 @@ public class Cell
 
     private Object cellValue;
 
+    // The value of this cell if it was set as a number by setNumber, in which
+    // case cellValue is null, so that the cells of a chain are calculated
+    // without boxing their values.
+    private double number;
+
     private CellType type;
 
+    // The template of this cell's formula if it is stored relative to the
+    // cell, in which case cellContents is null, and the column and row of
+    // this cell.
+    private FormulaTemplate template;
+    private int column;
+    private int row;
+
+    // The ids of the cells referenced by this cell's formula, in the order
+    // of the formula's variables, if they have been resolved.
+    private int[] references;
+
     /**
      * Constructs a new Cell, containing the given contents. The value of this
      * Cell is equal to its contents.
@@ -46,34 +62,113 @@ public class Cell
     }
 
     /**
-     * Constructs a new Cell, containing the given contents. The value of this
-     * Cell is equal the result of evaluating contents, using the given lookup
-     * functor.
+     * Constructs a new Cell, containing the given contents, whose variables
+     * refer to the cells with the given ids. The value of this Cell is equal
+     * to the result of evaluating contents, using the given lookup functor.
      */
-    public Cell(Formula contents, Lookup lookup)
+    Cell(Formula contents, int[] references, IntLookup lookup)
     {
         type = CellType.FORMULA_TYPE;
 
         cellContents = contents;
-        cellValue = contents.evaluate(lookup);
+        this.references = references;
+        cellValue = contents.evaluate(lookup, references);
     }
 
     /**
-     * Returns the contents of this cell as an Object.
+     * Constructs a new Cell, containing the formula represented by template in
+     * the cell at the given column and row, whose variables refer to the cells
+     * with the given ids. The value of this Cell is equal to the result of
+     * evaluating that formula, using the given lookup functor.
+     */
+    Cell(FormulaTemplate template, int column, int row, int[] references, IntLookup lookup)
+    {
+        type = CellType.FORMULA_TYPE;
+
+        this.template = template;
+        this.column = column;
+        this.row = row;
+        this.references = references;
+        cellValue = template.evaluate(lookup, references);
+    }
+
+    /**
+     * Returns the contents of this cell as an Object. A cell sharing the
+     * template of another cell parses its formula anew on every call, so
+     * getCellContentsText is cheaper where only the text is needed.
      */
     public Object getCellContents()
     {
+        if (template != null)
+        {
+            return template.instantiate(column, row);
+        }
         return cellContents;
     }
 
+    /**
+     * Returns the contents of this cell as a string, which for a formula is
+     * its text, without creating a Formula for a cell sharing a template.
+     */
+    String getCellContentsText()
+    {
+        if (template != null)
+        {
+            return template.getText(column, row);
+        }
+        return cellContents.toString();
+    }
+
     /**
      * Returns the value of this cell as an Object.
      */
     public Object getCellValue()
     {
+        if (cellValue == null)
+        {
+            return Double.valueOf(number);
+        }
         return cellValue;
     }
 
+    /**
+     * Returns true if the value of this cell is a number.
+     */
+    boolean hasNumber()
+    {
+        return cellValue == null || cellValue instanceof Double;
+    }
+
+    /**
+     * Returns the value of this cell, which is a number, without boxing it.
+     */
+    double getNumber()
+    {
+        if (cellValue == null)
+        {
+            return number;
+        }
+        return (Double) cellValue;
+    }
+
+    /**
+     * Sets the value of this cell, whose formula has been calculated outside
+     * of it, to the number value.
+     */
+    void setNumber(double value)
+    {
+        cellValue = null;
+        number = value;
+    }
+
+    /**
+     * Returns the template of this cell's formula, or null if it has none.
+     */
+    FormulaTemplate getTemplate()
+    {
+        return template;
+    }
+
     /**
      * Reports the type of the cell's contents.
      */
@@ -83,14 +178,44 @@ public class Cell
     }
 
     /**
-     * Recalculates the cell's value
+     * Returns an estimate of the work recalculating this cell's value takes,
+     * which is the number of operations of its formula, or 1 if it has none.
      */
-    public void recalculateCellValue(Lookup lookup)
+    int getCost()
     {
-        if (type == Cell.CellType.FORMULA_TYPE)
+        if (template != null)
+        {
+            return template.size();
+        }
+        if (type == CellType.FORMULA_TYPE)
+        {
+            return ((Formula) cellContents).size();
+        }
+        return 1;
+    }
+
+    /**
+     * Recalculates the cell's value, looking up the cells its formula
+     * references by their ids.
+     */
+    void recalculateCellValue(IntLookup lookup)
+    {
+        if (references == null)
+        {
+            return;
+        }
+
+        // a constant formula keeps the value computed when it was created
+        if (template != null)
+        {
+            if (!template.isConstant())
+            {
+                cellValue = template.evaluate(lookup, references);
+            }
+        }
+        else if (!((Formula) cellContents).isConstant())
         {
-            Formula f = (Formula) cellContents;
-            cellValue = f.evaluate(lookup);
+            cellValue = ((Formula) cellContents).evaluate(lookup, references);
         }
     }
 }
@@ -0,0 +1,339 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+import ssUtils.Aggregate;
+
+/**
+ * The numeric values of the cells of one column of a spreadsheet, stored by
+ * row in pages of primitive arrays, so that a range of rows can be aggregated
+ * without looking up each cell.
+ *
+ * Pages are allocated only for rows in use, so a column with a cell in a very
+ * large row does not need an array covering every row above it.
+ *
+ * Each page is a set of segment trees holding the sum, the number, the
+ * minimum and the maximum of the numeric values of its rows, and the pages are
+ * the leaves of another set of segment trees over the whole column. Any
+ * aggregate of any rows of a column is thus found by combining O(log n) nodes,
+ * and setting a value updates O(log n) of them. Many overlapping ranges, such
+ * as the running totals SUM(A$1:A1), SUM(A$1:A2), ... or the rolling windows
+ * MAX(A1:A50), MAX(A2:A51), ..., therefore never need to scan their rows, and
+ * share the trees rather than keeping state of their own which every change
+ * would have to update.
+ *
+ * Unlike a prefix sum index, a segment tree never subtracts one sum from
+ * another, so the sums of small ranges do not lose precision to large values
+ * elsewhere in the column and infinite values need no special treatment.
+ *
+ * Rows may be set from several threads at once while holding the lock of the
+ * column, as the nodes above them are shared. Aggregates are read without
+ * locking, which is safe for rows none of which are being set, once every
+ * row that is set has been reserved, as the nodes covering only those rows
+ * do not change and no page or tree is replaced.
+ */
+class CellColumn
+{
+
+    // The number of rows in each page, as a power of two.
+    private static final int PAGE_BITS = 7;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    // The kinds of tree, and the value of a node of each kind covering no
+    // numeric values.
+    private static final int SUM = 0;
+    private static final int COUNT = 1;
+    private static final int MIN = 2;
+    private static final int MAX = 3;
+    private static final double[] IDENTITIES = { 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+
+    // The trees of each page, by kind. The leaf of row i of the page is at
+    // PAGE_SIZE + i, and node n combines nodes 2n and 2n + 1. The leaves of
+    // the COUNT tree are 1 for rows with a numeric value and 0 otherwise,
+    // and the leaves of rows without one hold the identity of each kind.
+    private double[][][] pages = new double[1][][];
+
+    // The trees over the pages, by kind, whose leaves are the roots of the
+    // trees of each page. The number of pages is always a power of two.
+    private double[][] columnTrees = { { 0, 0 }, { 0, 0 }, IDENTITIES.clone(), IDENTITIES.clone() };
+
+    /**
+     * Records that row has the numeric value value.
+     */
+    void set(int row, double value)
+    {
+        reserve(row);
+        store(row >>> PAGE_BITS, row & (PAGE_SIZE - 1), value, 1, value, value);
+    }
+
+    /**
+     * Records that row has no numeric value.
+     */
+    void clear(int row)
+    {
+        int page = row >>> PAGE_BITS;
+        if (page < pages.length && pages[page] != null)
+        {
+            store(page, row & (PAGE_SIZE - 1), 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    /**
+     * Records that row has the numeric value value, as set does, except that
+     * the nodes above it are left for updateRows to bring up to date, so that
+     * setting a run of rows updates each node above them once. The column
+     * must not be read until they are updated.
+     */
+    void setLeaf(int row, double value)
+    {
+        reserve(row);
+        double[][] trees = pages[row >>> PAGE_BITS];
+        int leaf = PAGE_SIZE + (row & (PAGE_SIZE - 1));
+        trees[SUM][leaf] = value;
+        trees[COUNT][leaf] = 1;
+        trees[MIN][leaf] = value;
+        trees[MAX][leaf] = value;
+    }
+
+    /**
+     * Records that row has no numeric value, as clear does, except that the
+     * nodes above it are left for updateRows to bring up to date.
+     */
+    void clearLeaf(int row)
+    {
+        int page = row >>> PAGE_BITS;
+        if (page < pages.length && pages[page] != null)
+        {
+            double[][] trees = pages[page];
+            int leaf = PAGE_SIZE + (row & (PAGE_SIZE - 1));
+            for (int kind = 0; kind < IDENTITIES.length; kind++)
+            {
+                trees[kind][leaf] = IDENTITIES[kind];
+            }
+        }
+    }
+
+    /**
+     * Brings the nodes above the rows from firstRow to lastRow up to date
+     * after their leaves were set by setLeaf or clearLeaf, level by level.
+     */
+    void updateRows(int firstRow, int lastRow)
+    {
+        int firstPage = firstRow >>> PAGE_BITS;
+        int lastPage = Math.min(lastRow >>> PAGE_BITS, pages.length - 1);
+        for (int page = firstPage; page <= lastPage; page++)
+        {
+            if (pages[page] == null)
+            {
+                continue;
+            }
+            int from = (page == firstPage) ? firstRow & (PAGE_SIZE - 1) : 0;
+            int to = (page == lastRow >>> PAGE_BITS) ? lastRow & (PAGE_SIZE - 1) : PAGE_SIZE - 1;
+            for (int kind = 0; kind < IDENTITIES.length; kind++)
+            {
+                double[] tree = pages[page][kind];
+                updateNodes(tree, kind, PAGE_SIZE + from, PAGE_SIZE + to);
+                columnTrees[kind][pages.length + page] = tree[1];
+            }
+        }
+        if (firstPage <= lastPage)
+        {
+            for (int kind = 0; kind < IDENTITIES.length; kind++)
+            {
+                updateNodes(columnTrees[kind], kind, pages.length + firstPage, pages.length + lastPage);
+            }
+        }
+    }
+
+    /**
+     * Allocates the page holding row, growing the trees over the pages if
+     * they do not reach it, so that setting row allocates nothing.
+     */
+    void reserve(int row)
+    {
+        int page = row >>> PAGE_BITS;
+        while (page >= pages.length)
+        {
+            grow();
+        }
+        if (pages[page] == null)
+        {
+            pages[page] = new double[IDENTITIES.length][2 * PAGE_SIZE];
+            Arrays.fill(pages[page][MIN], Double.POSITIVE_INFINITY);
+            Arrays.fill(pages[page][MAX], Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    /**
+     * Returns the given aggregate of the numeric values from firstRow to
+     * lastRow, combined with the running aggregate result. For AVERAGE the
+     * sum is combined, as the average is computed from the sum and count of
+     * the whole range.
+     */
+    double aggregate(int firstRow, int lastRow, Aggregate aggregate, double result)
+    {
+        int kind;
+        switch (aggregate)
+        {
+            case MIN:
+                kind = MIN;
+                break;
+            case MAX:
+                kind = MAX;
+                break;
+            case COUNT:
+                kind = COUNT;
+                break;
+            default:
+                kind = SUM;
+                break;
+        }
+        return combine(kind, result, query(kind, firstRow, lastRow));
+    }
+
+    /**
+     * Returns the combination of the leaves of the trees of the given kind
+     * from firstRow to lastRow.
+     */
+    private double query(int kind, int firstRow, int lastRow)
+    {
+        int firstPage = firstRow >>> PAGE_BITS;
+        int lastPage = lastRow >>> PAGE_BITS;
+        if (firstPage >= pages.length)
+        {
+            return IDENTITIES[kind];
+        }
+        if (firstPage == lastPage)
+        {
+            return query(pages[firstPage], kind, PAGE_SIZE, firstRow & (PAGE_SIZE - 1), lastRow & (PAGE_SIZE - 1));
+        }
+
+        double result = query(pages[firstPage], kind, PAGE_SIZE, firstRow & (PAGE_SIZE - 1), PAGE_SIZE - 1);
+        if (lastPage >= pages.length)
+        {
+            return combine(kind, result, query(columnTrees, kind, pages.length, firstPage + 1, pages.length - 1));
+        }
+        result = combine(kind, result, query(columnTrees, kind, pages.length, firstPage + 1, lastPage - 1));
+        return combine(kind, result, query(pages[lastPage], kind, PAGE_SIZE, 0, lastRow & (PAGE_SIZE - 1)));
+    }
+
+    /**
+     * Sets the leaves of row i of page to the given sum, count, minimum and
+     * maximum, then updates the nodes above them in the trees of the page and
+     * of the column.
+     */
+    private void store(int page, int i, double sum, double count, double minimum, double maximum)
+    {
+        double[][] trees = pages[page];
+        for (int kind = 0; kind < IDENTITIES.length; kind++)
+        {
+            double leaf = (kind == SUM) ? sum : (kind == COUNT) ? count : (kind == MIN) ? minimum : maximum;
+            if (update(trees[kind], kind, PAGE_SIZE + i, leaf))
+            {
+                update(columnTrees[kind], kind, pages.length + page, trees[kind][1]);
+            }
+        }
+    }
+
+    /**
+     * Sets node of tree, a tree of the given kind, to value, then updates the
+     * nodes above it. As a node combines only the two below it, the nodes
+     * above one which keeps its value keep theirs, so the update stops there,
+     * and setting a value again or changing the count of a row which stays
+     * numeric updates very few nodes. Returns true if the root changed.
+     */
+    private static boolean update(double[] tree, int kind, int node, double value)
+    {
+        while (Double.compare(tree[node], value) != 0)
+        {
+            tree[node] = value;
+            if (node == 1)
+            {
+                return true;
+            }
+            node >>= 1;
+            value = combine(kind, tree[2 * node], tree[2 * node + 1]);
+        }
+        return false;
+    }
+
+    /**
+     * Updates every node of tree, a tree of the given kind, above the nodes
+     * from first to last, which are at the same level.
+     */
+    private static void updateNodes(double[] tree, int kind, int first, int last)
+    {
+        for (first >>= 1, last >>= 1; first > 0; first >>= 1, last >>= 1)
+        {
+            for (int node = first; node <= last; node++)
+            {
+                tree[node] = combine(kind, tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+    }
+
+    /**
+     * Doubles the number of pages, rebuilding the trees over the pages.
+     */
+    private void grow()
+    {
+        int length = pages.length * 2;
+        pages = Arrays.copyOf(pages, length);
+        for (int kind = 0; kind < IDENTITIES.length; kind++)
+        {
+            double[] tree = new double[2 * length];
+            System.arraycopy(columnTrees[kind], length / 2, tree, length, length / 2);
+            Arrays.fill(tree, length + length / 2, 2 * length, IDENTITIES[kind]);
+            for (int node = length - 1; node > 0; node--)
+            {
+                tree[node] = combine(kind, tree[2 * node], tree[2 * node + 1]);
+            }
+            columnTrees[kind] = tree;
+        }
+    }
+
+    /**
+     * Returns the combination of the leaves from from to to of the tree of the
+     * given kind in trees, which has the given number of leaves. Missing
+     * trees have no numeric values.
+     */
+    private static double query(double[][] trees, int kind, int leaves, int from, int to)
+    {
+        if (trees == null)
+        {
+            return IDENTITIES[kind];
+        }
+
+        double[] tree = trees[kind];
+        double left = IDENTITIES[kind];
+        double right = IDENTITIES[kind];
+        for (int l = leaves + from, r = leaves + to + 1; l < r; l >>= 1, r >>= 1)
+        {
+            if ((l & 1) != 0)
+            {
+                left = combine(kind, left, tree[l++]);
+            }
+            if ((r & 1) != 0)
+            {
+                right = combine(kind, tree[--r], right);
+            }
+        }
+        return combine(kind, left, right);
+    }
+
+    /**
+     * Returns the combination of a and b in a tree of the given kind.
+     */
+    private static double combine(int kind, double a, double b)
+    {
+        switch (kind)
+        {
+            case MIN:
+                return Math.min(a, b);
+            case MAX:
+                return Math.max(a, b);
+            default:
+                return a + b;
+        }
+    }
+}
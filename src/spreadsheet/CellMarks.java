@@ -0,0 +1,83 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * A set of cell ids which is emptied in constant time, for marking the cells
+ * visited by one search or recalculation.
+ *
+ * Each id holds the epoch in which it was last marked, and emptying the set
+ * starts a new epoch, so a search only touches the ids it marks. A BitSet
+ * created for each search instead costs time and memory in proportion to the
+ * largest id it marks, which on a sheet of a million cells is far more than a
+ * search of a few cells should cost.
+ *
+ * Each id in the set may also hold an int, such as its depth in a search.
+ */
+class CellMarks
+{
+
+    // The epoch in which each id was last marked, and the current epoch.
+    private int[] epochs = new int[16];
+    private int epoch = 1;
+
+    // The int held by each id in the set.
+    private int[] values = new int[16];
+
+    /**
+     * Empties this set.
+     */
+    void clear()
+    {
+        if (epoch == Integer.MAX_VALUE)
+        {
+            Arrays.fill(epochs, 0);
+            epoch = 0;
+        }
+        epoch++;
+    }
+
+    /**
+     * Returns true if id is in this set.
+     */
+    boolean contains(int id)
+    {
+        return id < epochs.length && epochs[id] == epoch;
+    }
+
+    /**
+     * Adds id to this set, returning true if it was not already there.
+     */
+    boolean add(int id)
+    {
+        if (id >= epochs.length)
+        {
+            epochs = Arrays.copyOf(epochs, Math.max(id + 1, 2 * epochs.length));
+            values = Arrays.copyOf(values, epochs.length);
+        }
+        if (epochs[id] == epoch)
+        {
+            return false;
+        }
+        epochs[id] = epoch;
+        values[id] = 0;
+        return true;
+    }
+
+    /**
+     * Returns the int held by id, or 0 if it is not in this set.
+     */
+    int get(int id)
+    {
+        return contains(id) ? values[id] : 0;
+    }
+
+    /**
+     * Adds id to this set if it is not already there, holding value.
+     */
+    void put(int id, int value)
+    {
+        add(id);
+        values[id] = value;
+    }
+}
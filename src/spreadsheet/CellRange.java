@@ -0,0 +1,102 @@
+package spreadsheet;
+
+import java.util.HashMap;
+
+import ssUtils.Aggregate;
+import ssUtils.CellAddress;
+
+/**
+ * A rectangular range of cells referenced by formulas, from its top left to
+ * its bottom right cell. Its aggregates are found from the segment trees of
+ * its columns, so a range keeps no state of its own.
+ */
+class CellRange
+{
+
+    // The first and last column and row of the range.
+    final int firstColumn;
+    final int firstRow;
+    final int lastColumn;
+    final int lastRow;
+
+    /**
+     * Creates the range written as its top left and bottom right cells
+     * separated by ':', as iterated by Formula.getRanges.
+     */
+    CellRange(String range)
+    {
+        int colon = range.indexOf(':');
+        long first = CellAddress.parse(range.substring(0, colon));
+        long last = CellAddress.parse(range.substring(colon + 1));
+        firstColumn = CellAddress.getColumn(first);
+        firstRow = CellAddress.getRow(first);
+        lastColumn = CellAddress.getColumn(last);
+        lastRow = CellAddress.getRow(last);
+    }
+
+    /**
+     * Creates the range from firstColumn and firstRow to lastColumn and
+     * lastRow.
+     */
+    CellRange(int firstColumn, int firstRow, int lastColumn, int lastRow)
+    {
+        this.firstColumn = firstColumn;
+        this.firstRow = firstRow;
+        this.lastColumn = lastColumn;
+        this.lastRow = lastRow;
+    }
+
+    /**
+     * Returns true if the cell at column and row is in this range.
+     */
+    boolean contains(int column, int row)
+    {
+        return firstColumn <= column && column <= lastColumn && firstRow <= row && row <= lastRow;
+    }
+
+    /**
+     * Returns true if this range and other have a cell in common.
+     */
+    boolean intersects(CellRange other)
+    {
+        return firstColumn <= other.lastColumn && other.firstColumn <= lastColumn && firstRow <= other.lastRow
+                && other.firstRow <= lastRow;
+    }
+
+    /**
+     * Returns the given aggregate of the numeric values in this range, whose
+     * columns are found in columns.
+     */
+    double aggregate(Aggregate aggregate, HashMap<Integer, CellColumn> columns)
+    {
+        switch (aggregate)
+        {
+            case MIN:
+                return scan(Aggregate.MIN, Double.POSITIVE_INFINITY, columns);
+            case MAX:
+                return scan(Aggregate.MAX, Double.NEGATIVE_INFINITY, columns);
+            case AVERAGE:
+                return scan(Aggregate.SUM, 0, columns) / scan(Aggregate.COUNT, 0, columns);
+            default:
+                return scan(aggregate, 0, columns);
+        }
+    }
+
+    /**
+     * Returns the given aggregate of the columns of this range, combined
+     * with the given identity.
+     */
+    private double scan(Aggregate aggregate, double identity, HashMap<Integer, CellColumn> columns)
+    {
+        double result = identity;
+        for (int c = firstColumn; c <= lastColumn; c++)
+        {
+            CellColumn column = columns.get(c);
+            if (column != null)
+            {
+                result = column.aggregate(firstRow, lastRow, aggregate, result);
+            }
+        }
+        return result;
+    }
+}
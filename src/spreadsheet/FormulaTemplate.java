@@ -0,0 +1,206 @@
+package spreadsheet;
+
+import java.util.HashSet;
+
+import ssUtils.CellAddress;
+import ssUtils.Formula;
+import ssUtils.FormulaFormatException;
+import ssUtils.IntLookup;
+import ssUtils.Normalizer;
+
+/**
+ * A formula stored relative to the cell containing it, so that every cell of a
+ * filled row or column can share it. Each reference to a cell is written as
+ * its offset from the containing cell in the style of R1C1, so that "A1*B1" in
+ * C1 and "A2*B2" in C2 both have the relative text "R[0]C[-2]*R[0]C[-1]".
+ *
+ * A template keeps the formula it was created from, the prototype, along with
+ * the column and row of the cell that contained it. Other cells evaluate the
+ * prototype with every reference moved by their offset from that cell.
+ */
+class FormulaTemplate
+{
+
+    // The formula this template was created from, and the column and row of
+    // the cell which contained it.
+    private final Formula prototype;
+    private final int column;
+    private final int row;
+
+    // The text of the formula with every reference written relative to the
+    // cell containing it.
+    private final String relativeText;
+
+    /**
+     * Creates a template from formula, which is contained in the cell at the
+     * given column and row and has the given relative text.
+     */
+    private FormulaTemplate(Formula prototype, int column, int row, String relativeText)
+    {
+        this.prototype = prototype;
+        this.column = column;
+        this.row = row;
+        this.relativeText = relativeText;
+    }
+
+    /**
+     * Returns a template for formula contained in the cell at column and row,
+     * which has the given relative text, or null if the formula cannot be
+     * stored as a template.
+     */
+    static FormulaTemplate create(Formula formula, int column, int row, String relativeText)
+    {
+        // a normalizer may produce text that does not parse back to the same
+        // formula, which cannot be stored as a template
+        try
+        {
+            if (!new Formula(formula.toString(), n -> n, v -> true).equals(formula))
+            {
+                return null;
+            }
+        }
+        catch (FormulaFormatException e)
+        {
+            return null;
+        }
+        return new FormulaTemplate(formula, column, row, relativeText);
+    }
+
+    /**
+     * Returns the text of formula, contained in the cell at column and row,
+     * with every reference written relative to that cell. An anchored column
+     * or row is written as its number rather than its offset, as in R1C[0].
+     * Returns null if any variable of formula is not a cell name in canonical
+     * form.
+     *
+     * Also returns null if two references to different cells name the same
+     * cell here, such as A$1 and A1 in A1, as the formula then has fewer
+     * distinct variables or ranges than others with the same relative text.
+     */
+    static String toRelativeText(Formula formula, int column, int row)
+    {
+        HashSet<String> names = new HashSet<String>();
+        HashSet<String> relativeNames = new HashSet<String>();
+        String relativeText = formula.toString(reference ->
+        {
+            long address = CellAddress.parseReference(reference);
+            if (address < 0)
+            {
+                return null;
+            }
+            String relativeName = (CellAddress.isRowAnchored(reference) ? "R" + CellAddress.getRow(address)
+                    : "R[" + (CellAddress.getRow(address) - row) + "]")
+                    + (CellAddress.isColumnAnchored(reference) ? "C" + CellAddress.getColumn(address)
+                            : "C[" + (CellAddress.getColumn(address) - column) + "]");
+            names.add(reference.replace("$", ""));
+            relativeNames.add(relativeName);
+            return relativeName;
+        });
+        return (names.size() == relativeNames.size()) ? relativeText : null;
+    }
+
+    /**
+     * Returns the text of this template with every reference written relative
+     * to the cell containing it. Two formulas have the same relative text
+     * exactly when they can share a template.
+     */
+    String getRelativeText()
+    {
+        return relativeText;
+    }
+
+    /**
+     * Returns true if the formula of this template never looks up a cell, so
+     * that its value never needs to be recalculated.
+     */
+    boolean isConstant()
+    {
+        return prototype.isConstant();
+    }
+
+    /**
+     * Returns true if the formula of this template references a single cell
+     * and does nothing but arithmetic, so that it can be iterated.
+     */
+    boolean isIterable()
+    {
+        return prototype.isIterable();
+    }
+
+    /**
+     * Evaluates this template count times as Formula.iterate does, which
+     * calculates a chain of cells using it, each referencing only the cell
+     * before it, from the value of the cell before the first of them.
+     */
+    int iterate(double value, double[] results, int count)
+    {
+        return prototype.iterate(value, results, count);
+    }
+
+    /**
+     * Returns the number of operations evaluating the formula of this
+     * template takes.
+     */
+    int size()
+    {
+        return prototype.size();
+    }
+
+    /**
+     * Returns the formula this template represents in the cell at column and
+     * row. Its variables are already normalized, so it is created with the
+     * identity normalizer and validator.
+     */
+    Formula instantiate(int column, int row)
+    {
+        if (column == this.column && row == this.row)
+        {
+            return prototype;
+        }
+        return new Formula(getText(column, row), n -> n, v -> true);
+    }
+
+    /**
+     * Returns the text of the formula this template represents in the cell at
+     * column and row, which is that of instantiate(column, row) without
+     * parsing it.
+     */
+    String getText(int column, int row)
+    {
+        if (column == this.column && row == this.row)
+        {
+            return prototype.toString();
+        }
+        return prototype.toString(shift(column, row));
+    }
+
+    /**
+     * Evaluates this template, using lookup to determine the values of the
+     * cells it references, which have already been resolved to the ids in
+     * references. Every cell using the template evaluates the same prototype,
+     * only with different ids.
+     */
+    Object evaluate(IntLookup lookup, int[] references)
+    {
+        return prototype.evaluate(lookup, references);
+    }
+
+    /**
+     * Returns a function which moves a reference of the prototype to the cell
+     * it refers to from the cell at column and row. Anchored columns and rows
+     * do not move.
+     */
+    private Normalizer shift(int column, int row)
+    {
+        int columnOffset = column - this.column;
+        int rowOffset = row - this.row;
+        return reference ->
+        {
+            long address = CellAddress.parseReference(reference);
+            boolean columnAnchored = CellAddress.isColumnAnchored(reference);
+            boolean rowAnchored = CellAddress.isRowAnchored(reference);
+            return CellAddress.toReference(CellAddress.getColumn(address) + (columnAnchored ? 0 : columnOffset),
+                    CellAddress.getRow(address) + (rowAnchored ? 0 : rowOffset), columnAnchored, rowAnchored);
+        };
+    }
+}
@@ -0,0 +1,198 @@
+package spreadsheet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ssUtils.CellAddress;
+
+/**
+ * The recalculation plans of the cells most recently changed, so that
+ * changing the same cells again, as a user or a feed of figures does, needs
+ * no search of the graph.
+ *
+ * A plan only changes when the references of a formula among its cells
+ * change, or a formula starts or stops referencing one of its cells, as the
+ * cells depending on a cell are found from those references alone. Each
+ * cell id has a mask with bit k set if the plan in slot k contains it, so
+ * such a change only drops the plans containing the cells it touches. A
+ * range touches too many cells to look up each one, so a range drops every
+ * plan the smallest range containing whose cells overlaps it.
+ *
+ * Plans are kept in a fixed number of slots, holding a bounded number of
+ * cells in all, and the least recently used plans make way for new ones.
+ */
+class PlanCache
+{
+
+    // The number of slots, which is the number of bits of a mask, and the
+    // largest number of cells of all plans together.
+    private static final int SLOTS = 64;
+    private static final int CELLS = 1 << 22;
+
+    // The plan in each slot, the id of the cell it is for, the smallest range
+    // containing its cells with names in canonical form, or null if it has
+    // none, and when it was last used.
+    private final RecalcPlan[] plans = new RecalcPlan[SLOTS];
+    private final int[] sources = new int[SLOTS];
+    private final CellRange[] bounds = new CellRange[SLOTS];
+    private final long[] uses = new long[SLOTS];
+    private long clock;
+
+    // The number of cells of every plan together.
+    private int cells;
+
+    // The slot of the plan of each cell which has one, by cell id.
+    private final HashMap<Integer, Integer> slots = new HashMap<Integer, Integer>();
+
+    // The mask of the plans containing each cell id.
+    private long[] masks = new long[16];
+
+    /**
+     * Returns the plan for the cell with id source, or null if it has none.
+     */
+    RecalcPlan get(int source)
+    {
+        Integer slot = slots.get(source);
+        if (slot == null)
+        {
+            return null;
+        }
+        uses[slot] = ++clock;
+        return plans[slot];
+    }
+
+    /**
+     * Keeps plan as the plan for the cell with id source, which has none,
+     * where the address of each cell id is found in addresses. The least
+     * recently used plans are dropped to make room for it.
+     */
+    void put(int source, RecalcPlan plan, long[] addresses)
+    {
+        int[] ids = plan.ids;
+        if (ids.length > CELLS)
+        {
+            return;
+        }
+
+        while (cells + ids.length > CELLS)
+        {
+            drop(leastRecentlyUsed());
+        }
+        int slot = freeSlot();
+        if (slot < 0)
+        {
+            slot = leastRecentlyUsed();
+            drop(slot);
+        }
+
+        int firstColumn = Integer.MAX_VALUE;
+        int firstRow = Integer.MAX_VALUE;
+        int lastColumn = -1;
+        int lastRow = -1;
+        long bit = 1L << slot;
+        for (int id : ids)
+        {
+            if (id >= masks.length)
+            {
+                masks = Arrays.copyOf(masks, Math.max(id + 1, 2 * masks.length));
+            }
+            masks[id] |= bit;
+
+            long address = addresses[id];
+            if (address >= 0)
+            {
+                firstColumn = Math.min(firstColumn, CellAddress.getColumn(address));
+                firstRow = Math.min(firstRow, CellAddress.getRow(address));
+                lastColumn = Math.max(lastColumn, CellAddress.getColumn(address));
+                lastRow = Math.max(lastRow, CellAddress.getRow(address));
+            }
+        }
+
+        plans[slot] = plan;
+        sources[slot] = source;
+        bounds[slot] = (lastColumn < 0) ? null : new CellRange(firstColumn, firstRow, lastColumn, lastRow);
+        uses[slot] = ++clock;
+        cells += ids.length;
+        slots.put(source, slot);
+    }
+
+    /**
+     * Drops the plans containing the cell with the given id, which is about
+     * to reference different cells or start or stop being referenced.
+     */
+    void invalidate(int id)
+    {
+        if (id < masks.length)
+        {
+            for (long mask = masks[id]; mask != 0; mask &= mask - 1)
+            {
+                drop(Long.numberOfTrailingZeros(mask));
+            }
+        }
+    }
+
+    /**
+     * Drops the plans which may contain a cell of any of ranges, which may be
+     * null, as a formula is about to start or stop referencing them.
+     */
+    void invalidate(CellRange[] ranges)
+    {
+        for (int i = 0; ranges != null && i < ranges.length; i++)
+        {
+            for (int slot = 0; slot < SLOTS; slot++)
+            {
+                if (plans[slot] != null && bounds[slot] != null && bounds[slot].intersects(ranges[i]))
+                {
+                    drop(slot);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an empty slot, or -1 if every slot holds a plan.
+     */
+    private int freeSlot()
+    {
+        for (int slot = 0; slot < SLOTS; slot++)
+        {
+            if (plans[slot] == null)
+            {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the slot holding the plan used least recently.
+     */
+    private int leastRecentlyUsed()
+    {
+        int oldest = -1;
+        for (int slot = 0; slot < SLOTS; slot++)
+        {
+            if (plans[slot] != null && (oldest < 0 || uses[slot] < uses[oldest]))
+            {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    /**
+     * Drops the plan in slot, clearing its bit from the masks of its cells.
+     */
+    private void drop(int slot)
+    {
+        long bit = 1L << slot;
+        for (int id : plans[slot].ids)
+        {
+            masks[id] &= ~bit;
+        }
+        slots.remove(sources[slot]);
+        cells -= plans[slot].ids.length;
+        plans[slot] = null;
+        bounds[slot] = null;
+    }
+}
@@ -0,0 +1,262 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.function.IntConsumer;
+
+/**
+ * The ranges referenced by the formulas of a spreadsheet, kept as rectangles
+ * rather than as an edge from every cell of each range to the formula, so that
+ * the index grows with the number of ranges and not with their sizes.
+ *
+ * Each column holds a segment tree over the rows, in which a range covering
+ * the column is listed at the O(log n) nodes whose rows make up its rows. The
+ * ranges containing a cell are then those listed at the nodes on the path
+ * from the leaf of its row to the root, so they are found in O(log n + k) for
+ * k ranges. Only nodes listing a range are stored, and each column records
+ * which levels of its tree have any, so a query only looks at those levels.
+ *
+ * A range is listed in every column it covers, which suits the tall ranges of
+ * a column of figures far better than wide ones.
+ */
+class RangeIndex
+{
+
+    // The number of leaves of the tree of each column, which is more than the
+    // largest row.
+    private static final int LEAVES = 1 << 30;
+
+    // The owner of each registration of a range, and the number of
+    // registrations whose owner has since removed them, which are left in the
+    // trees until they are rebuilt. The owner of a removed registration is -1.
+    private int[] owners = new int[16];
+    private int registrations;
+    private int removed;
+
+    // The registrations and ranges of each owner, by the id of its cell.
+    private HashMap<Integer, int[]> registrationsByOwner = new HashMap<Integer, int[]>();
+    private HashMap<Integer, CellRange[]> rangesByOwner = new HashMap<Integer, CellRange[]>();
+
+    // The tree of each column, by column.
+    private HashMap<Integer, ColumnTree> columns = new HashMap<Integer, ColumnTree>();
+
+    /**
+     * Returns the ranges of owner, or null if it has none. The array must not
+     * be changed.
+     */
+    CellRange[] getRanges(int owner)
+    {
+        return rangesByOwner.get(owner);
+    }
+
+    /**
+     * Replaces the ranges of owner with newRanges, which may be null or empty
+     * if it no longer has any.
+     */
+    void setRanges(int owner, CellRange[] newRanges)
+    {
+        int[] old = registrationsByOwner.remove(owner);
+        CellRange[] oldRanges = rangesByOwner.remove(owner);
+        if (old != null)
+        {
+            for (int registration : old)
+            {
+                owners[registration] = -1;
+            }
+            removed += old.length;
+            for (CellRange range : oldRanges)
+            {
+                for (int column = range.firstColumn; column <= range.lastColumn; column++)
+                {
+                    columns.get(column).ranges--;
+                }
+            }
+        }
+
+        if (newRanges != null && newRanges.length > 0)
+        {
+            int[] added = new int[newRanges.length];
+            for (int i = 0; i < newRanges.length; i++)
+            {
+                added[i] = register(owner, newRanges[i]);
+            }
+            registrationsByOwner.put(owner, added);
+            rangesByOwner.put(owner, newRanges);
+        }
+
+        if (removed > registrations / 2 + 1024)
+        {
+            rebuild();
+        }
+    }
+
+    /**
+     * Returns true if any row of column is in any range.
+     */
+    boolean coversColumn(int column)
+    {
+        ColumnTree tree = columns.get(column);
+        return tree != null && tree.ranges > 0;
+    }
+
+    /**
+     * Returns true if the cell at column and row is in any range.
+     */
+    boolean covers(int column, int row)
+    {
+        ColumnTree tree = columns.get(column);
+        if (tree == null)
+        {
+            return false;
+        }
+
+        for (int levels = tree.levels; levels != 0; levels &= levels - 1)
+        {
+            int[] list = tree.nodes.get((LEAVES + row) >>> Integer.numberOfTrailingZeros(levels));
+            if (list != null)
+            {
+                for (int i = 1; i <= list[0]; i++)
+                {
+                    if (owners[list[i]] >= 0)
+                    {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Passes the owner of each range containing the cell at column and row to
+     * action, once for each such range.
+     */
+    void forEachOwner(int column, int row, IntConsumer action)
+    {
+        ColumnTree tree = columns.get(column);
+        if (tree == null)
+        {
+            return;
+        }
+
+        for (int levels = tree.levels; levels != 0; levels &= levels - 1)
+        {
+            int[] list = tree.nodes.get((LEAVES + row) >>> Integer.numberOfTrailingZeros(levels));
+            if (list != null)
+            {
+                for (int i = 1; i <= list[0]; i++)
+                {
+                    int owner = owners[list[i]];
+                    if (owner >= 0)
+                    {
+                        action.accept(owner);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists range as a new registration of owner in the tree of each column
+     * it covers, and returns the registration.
+     */
+    private int register(int owner, CellRange range)
+    {
+        if (registrations == owners.length)
+        {
+            owners = Arrays.copyOf(owners, 2 * registrations);
+        }
+        int registration = registrations++;
+        owners[registration] = owner;
+
+        for (int column = range.firstColumn; column <= range.lastColumn; column++)
+        {
+            ColumnTree tree = columns.get(column);
+            if (tree == null)
+            {
+                tree = new ColumnTree();
+                columns.put(column, tree);
+            }
+            tree.ranges++;
+
+            // the nodes which together cover the rows of the range, as in a
+            // bottom up segment tree query
+            int level = 0;
+            for (int l = LEAVES + range.firstRow, r = LEAVES + range.lastRow + 1; l < r; l >>>= 1, r >>>= 1, level++)
+            {
+                if ((l & 1) != 0)
+                {
+                    tree.add(l++, level, registration);
+                }
+                if ((r & 1) != 0)
+                {
+                    tree.add(--r, level, registration);
+                }
+            }
+        }
+        return registration;
+    }
+
+    /**
+     * Lists the ranges of every owner again in new trees, dropping the
+     * removed registrations.
+     */
+    private void rebuild()
+    {
+        ArrayList<Integer> liveOwners = new ArrayList<Integer>(rangesByOwner.keySet());
+        owners = new int[16];
+        registrations = 0;
+        removed = 0;
+        columns = new HashMap<Integer, ColumnTree>();
+
+        for (int owner : liveOwners)
+        {
+            CellRange[] ownerRanges = rangesByOwner.get(owner);
+            int[] added = new int[ownerRanges.length];
+            for (int i = 0; i < ownerRanges.length; i++)
+            {
+                added[i] = register(owner, ownerRanges[i]);
+            }
+            registrationsByOwner.put(owner, added);
+        }
+    }
+
+    /**
+     * The segment tree of one column. Node n covers the rows of nodes 2n and
+     * 2n + 1, and the leaf of row i is LEAVES + i.
+     */
+    private static final class ColumnTree
+    {
+
+        // The registrations listed at each node, with their number first.
+        private final HashMap<Integer, int[]> nodes = new HashMap<Integer, int[]>();
+
+        // A bit for each level of the tree with a registration, where the
+        // leaves are level 0.
+        private int levels;
+
+        // The number of registrations listed whose owner has not removed them.
+        private int ranges;
+
+        /**
+         * Lists registration at node, which is at the given level.
+         */
+        void add(int node, int level, int registration)
+        {
+            int[] list = nodes.get(node);
+            if (list == null)
+            {
+                list = new int[4];
+                nodes.put(node, list);
+            }
+            else if (list[0] + 1 == list.length)
+            {
+                list = Arrays.copyOf(list, 2 * list.length);
+                nodes.put(node, list);
+            }
+            list[++list[0]] = registration;
+            levels |= 1 << level;
+        }
+    }
+}
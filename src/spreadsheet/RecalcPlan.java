@@ -0,0 +1,28 @@
+package spreadsheet;
+
+/**
+ * The cells to recalculate after a cell changes, by id, in the order they
+ * should be recalculated, the first of which is the cell that changed.
+ *
+ * The cells are grouped in units, each a cell followed by the linear chain of
+ * cells after it, in which every cell is the only one depending on the cell
+ * before it and depends on nothing else, such as the running balance of an
+ * amortization table. A chain is calculated in one loop from its first cell,
+ * which stops at the first cell whose value does not change, and only the
+ * cells depending on its last cell need to be looked up.
+ */
+class RecalcPlan
+{
+
+    // The ids of the cells, where the cells of each unit follow its first
+    // cell, and the index in ids of the first cell of each unit, followed by
+    // the number of cells.
+    final int[] ids;
+    final int[] units;
+
+    RecalcPlan(int[] ids, int[] units)
+    {
+        this.ids = ids;
+        this.units = units;
+    }
+}
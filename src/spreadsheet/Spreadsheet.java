@@ -2,11 +2,21 @@ package spreadsheet;
 
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.SAXParser;
@@ -19,28 +29,130 @@ import org.xml.sax.XMLReader;
 
 import spreadsheet.Cell.CellType;
 import static spreadsheet.Cell.CellType.FORMULA_TYPE;
+import ssUtils.Aggregate;
+import ssUtils.CellAddress;
 import ssUtils.Normalizer;
-import ssUtils.DependancyGraph;
 import ssUtils.Formula;
-import ssUtils.Lookup;
+import ssUtils.FormulaError;
+import ssUtils.IntDependancyGraph;
+import ssUtils.IntLookup;
+import ssUtils.NumberScanner;
 import ssUtils.IsValid;
 
 public class Spreadsheet extends AbstractSpreadsheet
 {
 
-    // A graph that keeps track of references contained in each formula
-    private DependancyGraph dependencies;
+    // In parallel mode, a recalculation is only shared between threads once
+    // it has this many units, and units are handed from one thread to another
+    // in batches costing about BATCH_COST, where the cost of a unit is the
+    // number of operations of the formulas of its cells.
+    private static final int PARALLEL_SIZE = 512;
+    private static final int BATCH_COST = 256;
+
+    // The largest number of cells of a chain calculated by one loop of
+    // double arithmetic, which bounds the cells calculated past the first
+    // one to come out unchanged.
+    private static final int CHAIN_BLOCK = 64;
+
+    // A graph that keeps track of references contained in each formula, by
+    // cell id. Each cell depends on the cells named by the variables of its
+    // formula, while the cells of its ranges are found from rangeIndex.
+    private IntDependancyGraph dependencies;
+
+    // The ranges referenced by each formula, by the id of its cell.
+    private RangeIndex rangeIndex;
+
+    // The plans for recalculating the cells most recently changed by value.
+    private PlanCache plans;
+
+    // The position of each cell id in a topological order of the cells,
+    // which is kept as formulas change rather than found again for every
+    // change. A new cell has no cells depending on it through its formula,
+    // so it is put before every other cell, at the position before
+    // firstOrder. Cells moved after every other cell are given the positions
+    // from nextOrder on.
+    private int[] order;
+    private int firstOrder;
+    private int nextOrder;
+
+    // The address of each cell id, as parsed by CellAddress, which is -1
+    // if its name is not in canonical form.
+    private long[] addresses;
+
+    // The cells found by the current search for the cells depending on a
+    // change, and the cells made stale by the current recalculation. Each
+    // cell found which starts a linear chain holds one more than the index
+    // in chains of the cells after it, which are followed by -1.
+    private CellMarks searched;
+    private CellMarks stale;
+    private int[] chains;
+    private int chainsLength;
+
+    // The pool on which the units of a large recalculation are calculated
+    // concurrently, or null if every cell is calculated on the calling
+    // thread, and the unit of the current one each cell starts, by the id of
+    // the cell.
+    private ForkJoinPool pool;
+    private CellMarks positions;
+
+    // The column whose leaves the unit being recalculated on the calling
+    // thread has set without updating the nodes above them, or null if the
+    // column is not stored, its number, which is -1 if there is none, and
+    // the first and last rows set.
+    private CellColumn leafRun;
+    private int leafRunColumn;
+    private int leafRunFirst;
+    private int leafRunLast;
 
     // A HashMap keyed by cell names that contains all non empty cells.
     // If a cell becomes empty, will be removed from the dictionary.
     private HashMap<String, Cell> cells;
 
-    // Provides the default method for looking up cell values in this spreadsheet
-    private Lookup defaultLookup;
+    // Ids for every cell name that holds contents or is referenced by a
+    // formula, and the name and non empty cell of each id. Formulas look up
+    // the cells they reference by id, so names are only resolved once.
+    private HashMap<String, Integer> cellIds;
+    private ArrayList<String> cellNames;
+    private ArrayList<Cell> cellsById;
+
+    // The error of formulas referencing each id when the cell has no numeric
+    // value, created the first time it is needed and then shared.
+    private ArrayList<FormulaError> referenceErrors;
+
+    // Ids for every range referenced by a formula, and the range of each id.
+    private HashMap<String, Integer> rangeIds;
+    private ArrayList<CellRange> rangesById;
+
+    // The numeric values of every cell with a name in canonical form in a
+    // column which some range covers, keyed by column, from which ranges are
+    // aggregated. Other columns are not kept, so that a sheet without ranges
+    // stores no values twice.
+    private HashMap<Integer, CellColumn> columns;
+
+    // Provides the default method for looking up cell values by id in this
+    // spreadsheet
+    private IntLookup defaultLookup;
+
+    // True if changing a cell only marks the cells depending on it dirty,
+    // leaving their values to be calculated when they are asked for.
+    private boolean lazy;
+
+    // The ids of the cells whose values are out of date in lazy mode. Every
+    // cell depending on a dirty cell is also dirty.
+    private BitSet dirty;
+
+    // The rows of the dirty cells with names in canonical form, keyed by
+    // column, from which the dirty cells of a range are found.
+    private HashMap<Integer, BitSet> dirtyRows;
 
     // A compiled Pattern object for matching cell names
     private Pattern cellNamePattern;
 
+    // The formula templates used by cells of this spreadsheet, keyed by their
+    // relative text. Each key is the relative text instance of its template
+    // and is only weakly held, so an entry is dropped once no cell uses it.
+    private WeakHashMap<String, WeakReference<FormulaTemplate>> templates;
+
     /**
      * Creates a new spreadsheet. In a new spreadsheet, the contents of every
      * cell is the empty string. This constructor imposes no extra validity
@@ -63,10 +175,29 @@ public class Spreadsheet extends AbstractSpreadsheet
     {
         super(isValid, normalize, version);
 
-        dependencies = new DependancyGraph();
+        dependencies = new IntDependancyGraph();
+        rangeIndex = new RangeIndex();
+        plans = new PlanCache();
+        order = new int[16];
+        addresses = new long[16];
+        searched = new CellMarks();
+        chains = new int[16];
+        stale = new CellMarks();
+        positions = new CellMarks();
+        leafRunColumn = -1;
         cells = new HashMap<String, Cell>();
-
-        defaultLookup = new LookupCellValue();
+        templates = new WeakHashMap<String, WeakReference<FormulaTemplate>>();
+        cellIds = new HashMap<String, Integer>();
+        cellNames = new ArrayList<String>();
+        cellsById = new ArrayList<Cell>();
+        referenceErrors = new ArrayList<FormulaError>();
+        rangeIds = new HashMap<String, Integer>();
+        rangesById = new ArrayList<CellRange>();
+        columns = new HashMap<Integer, CellColumn>();
+
+        defaultLookup = new LookupCellId();
+        dirty = new BitSet();
+        dirtyRows = new HashMap<Integer, BitSet>();
 
         cellNamePattern = Pattern.compile("^[a-zA-Z]+\\d+$");
     }
@@ -227,6 +358,10 @@ public class Spreadsheet extends AbstractSpreadsheet
 
         if (cells.containsKey(normalizedName))
         {
+            if (lazy && dirty.get(getCellId(normalizedName)))
+            {
+                calculateDirtyCell(normalizedName);
+            }
             return cells.get(normalizedName).getCellValue();
         }
         else
@@ -235,6 +370,56 @@ public class Spreadsheet extends AbstractSpreadsheet
         }
     }
 
+    /**
+     * Sets whether this spreadsheet evaluates lazily. In lazy mode, changing a
+     * cell only marks the cells depending on it dirty, and the value of a
+     * dirty cell is calculated when getCellValue asks for it, along with the
+     * dirty cells it depends on. Leaving lazy mode calculates every dirty
+     * cell. By default every cell depending on a changed cell is recalculated
+     * as soon as it changes.
+     */
+    public void setLazyEvaluation(boolean lazy)
+    {
+        this.lazy = lazy;
+        if (!lazy)
+        {
+            for (int id = dirty.nextSetBit(0); id >= 0; id = dirty.nextSetBit(id + 1))
+            {
+                calculateDirtyCell(cellNames.get(id));
+            }
+        }
+    }
+
+    /**
+     * Returns true if this spreadsheet evaluates lazily.
+     */
+    public boolean isLazyEvaluation()
+    {
+        return lazy;
+    }
+
+    /**
+     * Sets whether this spreadsheet recalculates in parallel. In parallel
+     * mode, each cell depending on a changed cell is calculated on the common
+     * ForkJoinPool as soon as every cell it depends on has been, so cells
+     * depending on different cells are calculated concurrently without
+     * waiting for each other. The values are the same as when every cell is
+     * calculated in turn. Lazy evaluation takes precedence, as it calculates
+     * no cells when one changes.
+     */
+    public void setParallelEvaluation(boolean parallel)
+    {
+        pool = parallel ? ForkJoinPool.commonPool() : null;
+    }
+
+    /**
+     * Returns true if this spreadsheet recalculates in parallel.
+     */
+    public boolean isParallelEvaluation()
+    {
+        return pool != null;
+    }
+
     /**
      * Returns an Iterable containing the names of all the non-empty cells in
      * this Spreadsheet
@@ -255,6 +440,9 @@ public class Spreadsheet extends AbstractSpreadsheet
      *
      * Otherwise, returns the contents (as opposed to the value) of the named
      * cell. The return value should be either a string, a double, or a Formula.
+     *
+     * A formula filled from another cell is stored as their shared template,
+     * so its Formula is parsed from the template's text on every call.
      */
     @Override
     public Object getCellContents(String name) throws InvalidNameException
@@ -317,9 +505,9 @@ public class Spreadsheet extends AbstractSpreadsheet
         String normalName = safelyNormalize(name);
         cellNameValidator(name);
 
-        if (Formula.ExtensionMethods.isDoubleString(content))
+        Double doubleContent = NumberScanner.tryParse(content);
+        if (doubleContent != null)
         {
-            double doubleContent = Double.parseDouble(content);
             return setCellContents(normalName, doubleContent);
         }
 
@@ -353,8 +541,8 @@ public class Spreadsheet extends AbstractSpreadsheet
         Cell cell = new Cell(text);
         addCellToHashMap(name, cell);
 
-        Iterable<String> recalcCells = getCellsToRecalculate(name);
-        recalculateCells(recalcCells);
+        RecalcPlan plan = planRecalculation(name);
+        recalculateCells(plan);
 
         // Empty string is a special case which clears the cell.
         if (text.equals(""))
@@ -362,7 +550,7 @@ public class Spreadsheet extends AbstractSpreadsheet
             emptyCell(name);
         }
 
-        return hashSetifyIterable(recalcCells);
+        return new CellNameSet(plan.ids);
     }
 
     /**
@@ -388,17 +576,16 @@ public class Spreadsheet extends AbstractSpreadsheet
         }
 
         cellNameValidator(name);
-        checkCircularDependency(name, formula);
+        RecalcPlan plan = checkCircularDependency(name, formula);
 
-        Cell cell = new Cell(formula, defaultLookup);
+        Cell cell = createFormulaCell(name, formula);
         addCellToHashMap(name, cell);
 
         setChanged(true);
 
-        Iterable<String> recalcCells = getCellsToRecalculate(name);
-        recalculateCells(recalcCells);
+        recalculateCells(plan);
 
-        return hashSetifyIterable(recalcCells);
+        return new CellNameSet(plan.ids);
 
     }
 
@@ -422,10 +609,10 @@ public class Spreadsheet extends AbstractSpreadsheet
 
         setChanged(true);
 
-        Iterable<String> recalcCells = getCellsToRecalculate(name);
-        recalculateCells(recalcCells);
+        RecalcPlan plan = planRecalculation(name);
+        recalculateCells(plan);
 
-        return hashSetifyIterable(recalcCells);
+        return new CellNameSet(plan.ids);
 
     }
 
@@ -457,229 +644,1478 @@ public class Spreadsheet extends AbstractSpreadsheet
         String normalName = safelyNormalize(name);
         cellNameValidator(normalName);
 
-        return dependencies.getDependees(normalName);
+        Integer id = cellIds.get(normalName);
+        long address = CellAddress.parse(normalName);
+        if (address >= 0 && rangeIndex.covers(CellAddress.getColumn(address), CellAddress.getRow(address)))
+        {
+            // the cells with a range containing this one, along with any
+            // naming it
+            HashSet<String> dependents = new HashSet<String>();
+            rangeIndex.forEachOwner(CellAddress.getColumn(address), CellAddress.getRow(address),
+                    owner -> dependents.add(cellNames.get(owner)));
+            int count = (id == null) ? 0 : dependencies.dependeeCount(id);
+            for (int i = 0; i < count; i++)
+            {
+                dependents.add(cellNames.get(dependencies.getDependee(id, i)));
+            }
+            return dependents;
+        }
+        if (id == null)
+        {
+            return new ArrayList<String>();
+        }
+
+        // a view of the graph rather than a copy, which is only iterated
+        // while the graph is unchanged
+        return () -> new Iterator<String>()
+        {
+            // The position of the next dependent.
+            private int next;
+
+            @Override
+            public boolean hasNext()
+            {
+                return next < dependencies.dependeeCount(id);
+            }
+
+            @Override
+            public String next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                return cellNames.get(dependencies.getDependee(id, next++));
+            }
+        };
+    }
+
+    /**
+     * Returns the cells which need to be recalculated when the cells in names
+     * have changed, in the order they should be recalculated. They are the
+     * cells depending on names, found by a breadth first search, and sorted
+     * by the topological order kept as formulas change, so only the cells
+     * being recalculated are visited.
+     *
+     * If a cycle is detected in the dependencies throws CircularException. If
+     * an invalid name is contained in names throws InvalidNameException.
+     */
+    @Override
+    protected Iterable<String> getCellsToRecalculate(Set<String> names) throws CircularException, InvalidNameException
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        searched.clear();
+        chainsLength = 0;
+        for (String name : names)
+        {
+            cellNameValidator(name);
+            if (!searched.contains(getCellId(name)))
+            {
+                findDependents(getCellId(name), ids, new int[0], new CellRange[0]);
+            }
+        }
+        return new CellNameSet(toPlan(ids).ids);
     }
 
     /**
-     * Takes an Iterable of strings in the order they must be calculated and
-     * recalculates the value of each one
+     * Returns the plan for recalculating the cells depending on the cell
+     * named name after it has changed, as getCellsToRecalculate finds them.
+     * The plan is kept for the next time the cell changes, unless it has no
+     * cells depending on it.
      */
-    private void recalculateCells(Iterable<String> recalcCells)
+    private RecalcPlan planRecalculation(String name) throws CircularException, InvalidNameException
     {
-        for (String cell : recalcCells)
+        cellNameValidator(name);
+        int id = getCellId(name);
+        RecalcPlan plan = plans.get(id);
+        if (plan != null)
         {
-            cells.get(cell).recalculateCellValue(defaultLookup);
+            return plan;
         }
 
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        searched.clear();
+        chainsLength = 0;
+        findDependents(id, ids, new int[0], new CellRange[0]);
+        plan = toPlan(ids);
+        if (plan.ids.length > 1)
+        {
+            plans.put(id, plan, addresses);
+        }
+        return plan;
     }
 
     /**
-     * Gets a cell's contents and returns a string version of the contents. If
-     * its contents is a double d, returns d.toString() If its contents is a
-     * string s, returns s. If its contents is a formula f, returns "="
-     * prepended to f.toString()
+     * Adds start, and each cell depending on it directly or indirectly which
+     * the current search has not yet found, to ids. A cell starting a linear
+     * chain is added with the cells of the chain recorded in chains, and the
+     * search goes on from the last of them.
+     *
+     * If start depends on itself throws CircularException. So as to check a
+     * new formula for start without changing the graph first, also throws
+     * CircularException as soon as it finds a cell among the sorted ids of
+     * references or in one of ranges, as the formula would then make a cycle.
      */
-    private String getCellContentsString(String cell)
+    private void findDependents(int start, ArrayList<Integer> ids, int[] references, CellRange[] ranges)
+            throws CircularException
     {
-        Cell c = cells.get(cell);
+        ArrayList<Integer> rangeOwners = new ArrayList<Integer>();
+        IntConsumer addRangeOwner = rangeOwners::add;
 
-        if (c.getType() == FORMULA_TYPE)
+        int first = ids.size();
+        searched.add(start);
+        ids.add(start);
+        if (isReferenced(start, references, ranges))
         {
-            return "=" + c.getCellContents().toString();
+            throw new CircularException(cellNames.get(start));
         }
-        else
+        for (int i = first; i < ids.size(); i++)
         {
-            return c.getCellContents().toString();
+            int id = ids.get(i);
+
+            // the cells of a chain can only be reached through the cell
+            // before them, so they are taken in turn without a search
+            int last = id;
+            for (int next = nextInChain(id); next >= 0 && searched.add(next); next = nextInChain(next))
+            {
+                if (isReferenced(next, references, ranges))
+                {
+                    throw new CircularException(cellNames.get(next));
+                }
+                if (last == id)
+                {
+                    searched.put(id, chainsLength + 1);
+                }
+                addToChains(next);
+                last = next;
+            }
+            if (last != id)
+            {
+                addToChains(-1);
+            }
+
+            rangeOwners.clear();
+            long address = addresses[last];
+            if (address >= 0)
+            {
+                rangeIndex.forEachOwner(CellAddress.getColumn(address), CellAddress.getRow(address), addRangeOwner);
+            }
+
+            // the cells naming this one, then those with a range containing it
+            int named = dependencies.dependeeCount(last);
+            for (int j = 0; j < named + rangeOwners.size(); j++)
+            {
+                int dependent = (j < named) ? dependencies.getDependee(last, j) : rangeOwners.get(j - named);
+                if (dependent == start)
+                {
+                    throw new CircularException(cellNames.get(last));
+                }
+                if (searched.add(dependent))
+                {
+                    if (isReferenced(dependent, references, ranges))
+                    {
+                        throw new CircularException(cellNames.get(dependent));
+                    }
+                    ids.add(dependent);
+                }
+            }
         }
     }
 
     /**
-     * If name is null, returns null. Else returns Normalize(name)
+     * Returns the id of the next cell of a linear chain after the cell with
+     * the given id, which is the only cell depending on it if that cell
+     * depends on nothing else, or -1 if there is none.
      */
-    private String safelyNormalize(String name)
+    private int nextInChain(int id)
     {
-        if (name == null)
+        if (dependencies.dependeeCount(id) != 1)
         {
-            return null;
+            return -1;
+        }
+        long address = addresses[id];
+        if (address >= 0 && rangeIndex.covers(CellAddress.getColumn(address), CellAddress.getRow(address)))
+        {
+            return -1;
         }
 
-        return getNormalize().normalize(name);
+        int next = dependencies.getDependee(id, 0);
+        if (dependencies.dependentCount(next) != 1 || rangeIndex.getRanges(next) != null)
+        {
+            return -1;
+        }
+        return next;
     }
 
     /**
-     * A function which returns true if name is a valid cell name and any
-     * additional restrictions imposed by the validator are met, else, returns
-     * false. Used to pass to formulas to validate their variable names
+     * Appends id to chains.
      */
-    private boolean validator(String name)
+    private void addToChains(int id)
     {
-        if (name == null)
+        if (chainsLength == chains.length)
         {
-            return false;
+            chains = Arrays.copyOf(chains, 2 * chainsLength);
         }
-
-        return cellNamePattern.matcher(name).find() && getIsValid().isValid(name);
+        chains[chainsLength++] = id;
     }
 
     /**
-     * If name is null or invalid, throws an InvalidNameException. Used to
-     * validate cell names passed to the spreadsheet.
+     * Returns the plan for recalculating the cells found by the current
+     * search, whose first cells of units are ids, by sorting those cells in
+     * topological order and putting the cells of their chains after them.
      */
-    private void cellNameValidator(String normalizedName) throws InvalidNameException
+    private RecalcPlan toPlan(ArrayList<Integer> ids)
     {
-        if (!validator(normalizedName))
+        int[] sorted = sortByOrder(ids);
+        int[] planned = new int[sorted.length + chainsLength];
+        int[] units = new int[sorted.length + 1];
+        int count = 0;
+        for (int u = 0; u < sorted.length; u++)
         {
-            throw new InvalidNameException("Invalid cell name");
+            units[u] = count;
+            planned[count++] = sorted[u];
+            int chain = searched.get(sorted[u]) - 1;
+            if (chain >= 0)
+            {
+                while (chains[chain] >= 0)
+                {
+                    planned[count++] = chains[chain++];
+                }
+            }
         }
+        units[sorted.length] = count;
 
+        // chains holds a -1 after each chain, which is not planned
+        return new RecalcPlan((count == planned.length) ? planned : Arrays.copyOf(planned, count), units);
     }
 
     /**
-     * Updates dependencies then checks for circular dependencies.
-     *
-     * If there is a circular dependency, ensures the spreadsheet is not changed
-     * and old state of dependencies is restored, then throws
-     * CircularDependency. Else returns a set consisting of name plus the names
-     * of all other cells whose value depends directly or indirectly on the cell
-     * name.
+     * Returns true if the cell with the given id is among the sorted ids of
+     * references or in one of ranges.
      */
-    private Iterable<String> checkCircularDependency(String name, Formula formula)
-            throws CircularException, InvalidNameException
+    private boolean isReferenced(int id, int[] references, CellRange[] ranges)
     {
-        // preserve current state
-        Iterable<String> oldDependencies = dependencies.getDependents(name);
-        // update the graph
-        dependencies.replaceDependents(name, formula.getVariables());
-
-        try
+        if (Arrays.binarySearch(references, id) >= 0)
         {
-            return getCellsToRecalculate(name);
+            return true;
         }
-        catch (CircularException e)
+        if (ranges.length == 0)
+        {
+            return false;
+        }
+
+        long address = addresses[id];
+        for (CellRange range : ranges)
         {
-            // return graph to state prior to circular exception
-            dependencies.replaceDependents(name, oldDependencies);
-            throw e;
+            if (address >= 0 && range.contains(CellAddress.getColumn(address), CellAddress.getRow(address)))
+            {
+                return true;
+            }
         }
+        return false;
     }
 
     /**
-     * Removes named cell's dependents from the graph then removes it from cells
-     * per invariant
+     * Returns the ids in the topological order of the cells.
      */
-    private void emptyCell(String name)
+    private int[] sortByOrder(ArrayList<Integer> ids)
     {
-        dependencies.replaceDependents(name, new ArrayList<String>());
-        cells.remove(name);
+        // the position in the high half and the id in the low half
+        long[] keys = new long[ids.size()];
+        for (int i = 0; i < keys.length; i++)
+        {
+            keys[i] = ((long) order[ids.get(i)] << 32) | ids.get(i);
+        }
+        Arrays.sort(keys);
+
+        int[] sorted = new int[keys.length];
+        for (int i = 0; i < keys.length; i++)
+        {
+            sorted[i] = (int) keys[i];
+        }
+        return sorted;
     }
 
     /**
-     * Takes a cell name and the corresponding cell and adds it to the
-     * dictionary. If the cell is replacing a cell which had a formula in it,
-     * removes the cells dependents.
+     * Moves the cells with the given ids, which are every cell depending on
+     * the first of them in topological order, after every other cell. As no
+     * other cell depends on them, this keeps the order topological when the
+     * first of them has a new formula, whatever it references.
      */
-    private void addCellToHashMap(String name, Cell cell)
+    private void moveToEnd(int[] ids)
     {
-        // Do not want to overwrite new formula's dependents 
-        //if this cell is a formula type
-        if (cells.containsKey(name)
-                && cells.get(name).getType() == CellType.FORMULA_TYPE
-                && cell.getType() != CellType.FORMULA_TYPE)
+        if (nextOrder > Integer.MAX_VALUE - ids.length)
         {
-            dependencies.replaceDependents(name, new ArrayList<String>());
+            renumberOrder();
         }
+        for (int id : ids)
+        {
+            order[id] = nextOrder++;
+        }
+    }
 
-        cells.put(name, cell);
+    /**
+     * Gives the cells the positions from 0 on, keeping their order, once
+     * the positions before or after them have run out.
+     */
+    private void renumberOrder()
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>(cellNames.size());
+        for (int id = 0; id < cellNames.size(); id++)
+        {
+            ids.add(id);
+        }
 
+        int position = 0;
+        for (int id : sortByOrder(ids))
+        {
+            order[id] = position++;
+        }
+        firstOrder = 0;
+        nextOrder = position;
     }
 
     /**
-     * Places the elements of iterable into a HashSet and returns it.
+     * Recalculates the value of each cell of plan whose value may have
+     * changed, in the order of the plan, the first of which is the cell that
+     * changed.
+     *
+     * A cell is only recalculated if a cell it references came out with a
+     * different value, so a change absorbed by a formula, such as by rounding
+     * or a threshold, does not recalculate the cells depending on it.
      */
-    private HashSet<String> hashSetifyIterable(Iterable<String> iterable)
+    private void recalculateCells(RecalcPlan plan)
     {
-        if (iterable instanceof HashSet)
+        int[] ids = plan.ids;
+        if (lazy)
         {
-            return (HashSet<String>) iterable;
+            for (int id : ids)
+            {
+                setDirty(id, true);
+            }
+            return;
         }
-
-        if (iterable instanceof Collection)
+        if (pool != null && pool.getParallelism() > 1 && plan.units.length > PARALLEL_SIZE)
         {
-            return new HashSet<String>((Collection<String>) iterable);
+            recalculateDataflow(plan);
+            return;
         }
 
-        HashSet<String> set = new HashSet<String>();
-        for (String s : iterable)
+        // no cell is stale until a cell it references changes
+        stale.clear();
+        IntConsumer markStale = stale::add;
+        int[] units = plan.units;
+        for (int u = 0; u < units.length - 1; u++)
         {
-            set.add(s);
+            if (u == 0 || stale.contains(ids[units[u]]))
+            {
+                if (recalculateUnit(ids, units[u], units[u + 1], false))
+                {
+                    forEachDependent(ids[units[u + 1] - 1], markStale);
+                }
+            }
         }
+    }
+
+    /**
+     * Recalculates the cells of a unit of a plan, which are the ids from from
+     * to to, the first of which is stale, and returns true if the last of them
+     * came out with a different value. The first cell of a plan is always
+     * taken to have changed. If concurrent is true, other units are being
+     * recalculated on other threads.
+     *
+     * No cell depends on the cells of a chain but the next one, so they are
+     * calculated in one loop which stops at the first cell to come out
+     * unchanged. Consecutive cells of a chain sharing a template, such as a
+     * filled column of running balances, are calculated CHAIN_BLOCK at a time
+     * by iterating the template in double arithmetic, and their values set
+     * without boxing. Neither do ranges contain any cell of a chain but the
+     * last, so on the calling thread the values of a run of consecutive rows
+     * of one column are set in its leaves as they are calculated, and the
+     * nodes above them updated once at the end of the run, rather than for
+     * every cell.
+     */
+    private boolean recalculateUnit(int[] ids, int from, int to, boolean concurrent)
+    {
+        double[] block = null;
+        boolean single = to - from == 1;
+        boolean changed = true;
+        int i = from;
+        while (i < to && changed)
+        {
+            Cell c = cellsById.get(ids[i]);
+
+            // the cells from this one sharing its template
+            FormulaTemplate template = c.getTemplate();
+            Cell previous = (i > from) ? cellsById.get(ids[i - 1]) : null;
+            int count = 0;
+            if (previous != null && previous.hasNumber() && template != null && template.isIterable())
+            {
+                while (count < CHAIN_BLOCK && i + count < to && cellsById.get(ids[i + count]).getTemplate() == template)
+                {
+                    count++;
+                }
+            }
+
+            if (count > 1)
+            {
+                if (block == null)
+                {
+                    block = new double[CHAIN_BLOCK];
+                }
+                int calculated = template.iterate(previous.getNumber(), block, count);
+                for (int j = 0; j < calculated && changed; j++, i++)
+                {
+                    Cell cell = cellsById.get(ids[i]);
+                    changed = !cell.hasNumber() || Double.compare(cell.getNumber(), block[j]) != 0;
+                    if (changed)
+                    {
+                        cell.setNumber(block[j]);
+                        storeUnitValue(ids[i], true, block[j], single, concurrent);
+                    }
+                }
+
+                // a cell whose value is not a number is calculated by itself
+                if (calculated > 0)
+                {
+                    continue;
+                }
+            }
 
-        return set;
+            Object oldValue = c.getCellValue();
+            c.recalculateCellValue(defaultLookup);
+            Object value = c.getCellValue();
+            changed = i == 0 || valueChanged(oldValue, value);
+            if (changed)
+            {
+                boolean isNumber = value instanceof Double;
+                storeUnitValue(ids[i], isNumber, isNumber ? (Double) value : 0, single, concurrent);
+            }
+            i++;
+        }
 
+        if (!single && !concurrent)
+        {
+            finishLeafRun();
+        }
+        return changed;
     }
 
     /**
-     * Attempts to read in the Spreadsheet saved at filename. Upon successful
-     * parsing, returns the handler that was used to read in the spreadsheet
-     * which will contain a method for getting a HashMap of every cell and cell
-     * contents of the file, and a method for getting the version of the
-     * spreadsheet.
-     *
-     * If parsing is unsuccessful will throw SpreadsheetReadWriteException
+     * Records the value of the cell with the given id, which is in the unit
+     * being recalculated, in its column as storeValue does, where isNumber
+     * tells whether it has the numeric value value. Each value is stored
+     * holding the lock of its column if concurrent is true, as other units
+     * may be storing rows of it, and by itself if the unit is a single cell.
+     * Otherwise the value is set in the leaves of the current run of rows,
+     * which is finished first if the cell is not next to it.
      */
-    private SpreadsheetDocumentHandler parseSpreadsheetXML(String filename) throws SpreadsheetReadWriteException
+    private void storeUnitValue(int id, boolean isNumber, double value, boolean single, boolean concurrent)
     {
-        try
+        long address = addresses[id];
+        if (address < 0)
         {
-            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
-            SAXParser parser = parserFactory.newSAXParser();
+            return;
+        }
 
-            XMLReader reader = parser.getXMLReader();
+        int column = CellAddress.getColumn(address);
+        int row = CellAddress.getRow(address);
+        if (single || concurrent)
+        {
+            CellColumn cellColumn = columns.get(column);
+            if (cellColumn == null)
+            {
+                return;
+            }
+            if (!concurrent)
+            {
+                storeNumber(cellColumn, row, isNumber, value);
+                return;
+            }
+            synchronized (cellColumn)
+            {
+                storeNumber(cellColumn, row, isNumber, value);
+            }
+            return;
+        }
 
-            SpreadsheetDocumentHandler handler = new SpreadsheetDocumentHandler();
-            reader.setContentHandler(handler);
-            reader.parse(new InputSource(new FileInputStream(filename)));
+        if (column != leafRunColumn || (leafRun != null && (row < leafRunFirst - 1 || row > leafRunLast + 1)))
+        {
+            finishLeafRun();
+            leafRun = columns.get(column);
+            leafRunColumn = column;
+            leafRunFirst = row;
+            leafRunLast = row;
+        }
+        if (leafRun == null)
+        {
+            return;
+        }
 
-            return handler;
+        if (isNumber)
+        {
+            leafRun.setLeaf(row, value);
+        }
+        else
+        {
+            leafRun.clearLeaf(row);
+        }
+        leafRunFirst = Math.min(leafRunFirst, row);
+        leafRunLast = Math.max(leafRunLast, row);
+    }
 
+    /**
+     * Updates the nodes above the leaves set in the current run of rows, and
+     * ends the run.
+     */
+    private void finishLeafRun()
+    {
+        if (leafRun != null)
+        {
+            leafRun.updateRows(leafRunFirst, leafRunLast);
         }
-        catch (Exception e)
+        leafRun = null;
+        leafRunColumn = -1;
+    }
+
+    /**
+     * Sets row of column to value if isNumber is true, else records that it
+     * has no numeric value.
+     */
+    private static void storeNumber(CellColumn column, int row, boolean isNumber, double value)
+    {
+        if (isNumber)
         {
-            throw new SpreadsheetReadWriteException("Error reading file: " + filename);
+            column.set(row, value);
+        }
+        else
+        {
+            column.clear(row);
         }
     }
 
     /**
-     * Provides a lookup function for evaluating functions contained in this
-     * spreadsheet.
+     * Recalculates the units of plan as recalculateCells does, concurrently.
+     * Each unit counts down the inputs it has among the others, and is
+     * calculated as soon as the last of them is, so no unit waits for any
+     * unit it does not depend on. A chain is calculated by the one task
+     * finishing its unit, as the cells after its first depend on nothing
+     * else. The units whose inputs are done are calculated by the thread
+     * which finished them until they cost BATCH_COST, and the rest are handed
+     * to other threads in batches of that cost, so that a task is never made
+     * for a single cheap cell.
      */
-    private class LookupCellValue implements Lookup
+    private void recalculateDataflow(RecalcPlan plan)
     {
+        int[] ids = plan.ids;
+        int[] units = plan.units;
+        int count = units.length - 1;
+        positions.clear();
+        for (int u = 0; u < count; u++)
+        {
+            positions.put(ids[units[u]], u);
+        }
 
-        /**
-         * If the value of variable can be mapped to a double, returns that
-         * double else throws an exception.
-         */
-        @Override
-        public double lookup(String variable)
+        // the number of times the first cell of each unit is passed as a
+        // dependent of the last cells of the others, which is how many
+        // inputs it waits for, and the cost of the unit
+        int[] inputs = new int[count];
+        int[] costs = new int[count];
+        for (int u = 0; u < count; u++)
         {
-            try
+            forEachDependent(ids[units[u + 1] - 1], dependent ->
             {
-                Object value = getCellValue(variable);
-                if (value instanceof Double)
+                if (positions.contains(dependent))
                 {
-                    return (Double) value;
+                    inputs[positions.get(dependent)]++;
                 }
-
-                throw new IllegalArgumentException("Could not look up the value of variable" + variable);
-
-            }
-            catch (InvalidNameException e)
+            });
+            for (int i = units[u]; i < units[u + 1]; i++)
             {
-                throw new IllegalArgumentException("Could not look up the value of variable" + variable);
+                costs[u] += cellsById.get(ids[i]).getCost();
+                reserveColumn(ids[i]);
             }
         }
 
+        Dataflow dataflow = new Dataflow(ids, units, costs, new AtomicIntegerArray(inputs));
+        pool.invoke(dataflow.new Batch(null, new int[] { 0 }, 1));
+    }
+
+    /**
+     * Passes the id of each cell depending directly on the cell with the
+     * given id to action, which are the cells naming it and then the cells
+     * with a range containing it. A cell may be passed more than once.
+     */
+    private void forEachDependent(int id, IntConsumer action)
+    {
+        for (int i = 0, count = dependencies.dependeeCount(id); i < count; i++)
+        {
+            action.accept(dependencies.getDependee(id, i));
+        }
+        long address = addresses[id];
+        if (address >= 0)
+        {
+            rangeIndex.forEachOwner(CellAddress.getColumn(address), CellAddress.getRow(address), action);
+        }
+    }
+
+    /**
+     * Returns true if a cell whose value was oldValue and is now newValue
+     * looks different to the formulas referencing it. They only see its
+     * numeric value, or that it has none.
+     */
+    private static boolean valueChanged(Object oldValue, Object newValue)
+    {
+        if (oldValue instanceof Double && newValue instanceof Double)
+        {
+            return !oldValue.equals(newValue);
+        }
+        return oldValue instanceof Double || newValue instanceof Double;
+    }
+
+    /**
+     * Calculates the value of the dirty cell named name, after calculating
+     * each dirty cell it depends on, so that every cell it looks up is clean.
+     * The cells are found by a depth first search which only enters dirty
+     * cells, as the cells a clean cell depends on are all clean.
+     */
+    private void calculateDirtyCell(String name)
+    {
+        // the path of cells entered and, for each, its four search positions
+        // as kept by nextDirtyReference
+        int[] path = new int[16];
+        int[] cursors = new int[4 * 16];
+        int depth = 1;
+        path[0] = getCellId(name);
+        setDirty(path[0], false);
+
+        while (depth > 0)
+        {
+            int top = depth - 1;
+            // a cell is only entered once, as the graph has no cycles
+            int reference = nextDirtyReference(path[top], cursors, 4 * top);
+            if (reference >= 0)
+            {
+                if (depth == path.length)
+                {
+                    path = Arrays.copyOf(path, 2 * depth);
+                    cursors = Arrays.copyOf(cursors, 8 * depth);
+                }
+                setDirty(reference, false);
+                path[depth] = reference;
+                Arrays.fill(cursors, 4 * depth, 4 * depth + 4, 0);
+                depth++;
+                continue;
+            }
+
+            depth--;
+            Cell c = cellsById.get(path[depth]);
+            if (c != null)
+            {
+                c.recalculateCellValue(defaultLookup);
+                storeValue(path[depth], c.getCellValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the id of the next dirty cell referenced by the cell with the
+     * given id, or -1 if there are no more. The search continues from the four
+     * positions at cursors[at], which are the number of the cells named by its
+     * variables that have been visited, the range being searched, and the
+     * column and row of the range to search from, where column 0 means the
+     * range has not been started.
+     */
+    private int nextDirtyReference(int id, int[] cursors, int at)
+    {
+        int count = dependencies.dependentCount(id);
+        while (cursors[at] < count)
+        {
+            int reference = dependencies.getDependent(id, cursors[at]++);
+            if (dirty.get(reference))
+            {
+                return reference;
+            }
+        }
+
+        CellRange[] ranges = rangeIndex.getRanges(id);
+        while (ranges != null && cursors[at + 1] < ranges.length)
+        {
+            CellRange range = ranges[cursors[at + 1]];
+            if (cursors[at + 2] == 0)
+            {
+                cursors[at + 2] = range.firstColumn;
+                cursors[at + 3] = range.firstRow;
+            }
+
+            BitSet rows = dirtyRows.get(cursors[at + 2]);
+            int row = (rows == null) ? -1 : rows.nextSetBit(cursors[at + 3]);
+            if (row >= 0 && row <= range.lastRow)
+            {
+                cursors[at + 3] = row + 1;
+                return cellIds.get(CellAddress.toName(cursors[at + 2], row));
+            }
+
+            if (cursors[at + 2] < range.lastColumn)
+            {
+                cursors[at + 2]++;
+                cursors[at + 3] = range.firstRow;
+            }
+            else
+            {
+                cursors[at + 1]++;
+                cursors[at + 2] = 0;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Marks the cell with the given id dirty or clean, also recording the row
+     * of a dirty cell whose name is in canonical form.
+     */
+    private void setDirty(int id, boolean isDirty)
+    {
+        dirty.set(id, isDirty);
+        long address = addresses[id];
+        if (address < 0)
+        {
+            return;
+        }
+
+        int column = CellAddress.getColumn(address);
+        BitSet rows = dirtyRows.get(column);
+        if (isDirty)
+        {
+            if (rows == null)
+            {
+                rows = new BitSet();
+                dirtyRows.put(column, rows);
+            }
+            rows.set(CellAddress.getRow(address));
+        }
+        else if (rows != null)
+        {
+            rows.clear(CellAddress.getRow(address));
+        }
+    }
+
+    /**
+     * Returns a new cell named name containing formula. If every reference of
+     * the formula can be written relative to the cell, the cell shares a
+     * template with every other cell whose formula is the same relative to
+     * it, such as the cells of a filled column.
+     */
+    private Cell createFormulaCell(String name, Formula formula)
+    {
+        int[] references = resolveReferences(formula);
+
+        long address = CellAddress.parse(name);
+        if (address < 0)
+        {
+            return new Cell(formula, references, defaultLookup);
+        }
+
+        int column = CellAddress.getColumn(address);
+        int row = CellAddress.getRow(address);
+        String relativeText = FormulaTemplate.toRelativeText(formula, column, row);
+        if (relativeText == null)
+        {
+            return new Cell(formula, references, defaultLookup);
+        }
+
+        WeakReference<FormulaTemplate> reference = templates.get(relativeText);
+        FormulaTemplate template = (reference == null) ? null : reference.get();
+        if (template == null)
+        {
+            template = FormulaTemplate.create(formula, column, row, relativeText);
+            if (template == null)
+            {
+                return new Cell(formula, references, defaultLookup);
+            }
+            // drop any stale entry first, as put keeps the existing key
+            templates.remove(relativeText);
+            templates.put(template.getRelativeText(), new WeakReference<FormulaTemplate>(template));
+        }
+
+        return new Cell(template, column, row, references, defaultLookup);
+    }
+
+    /**
+     * Returns the ids of the cells named by the variables of formula, in the
+     * order getVariables iterates them, followed by the ids of its ranges. A
+     * variable refers to the cell named by its normalized form, which need
+     * not be a valid cell name.
+     */
+    private int[] resolveReferences(Formula formula)
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (String variable : formula.getVariables())
+        {
+            ids.add(getCellId(safelyNormalize(variable)));
+        }
+        for (String range : formula.getRanges())
+        {
+            ids.add(getRangeId(range));
+        }
+
+        int[] references = new int[ids.size()];
+        for (int i = 0; i < references.length; i++)
+        {
+            references[i] = ids.get(i);
+        }
+        return references;
+    }
+
+    /**
+     * Returns the ids of the cells named by the variables of formula. The
+     * cells of its ranges are not included, as they are found from the range
+     * index instead.
+     */
+    private int[] getReferencedCells(Formula formula)
+    {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (String variable : formula.getVariables())
+        {
+            ids.add(getCellId(variable));
+        }
+
+        int[] references = new int[ids.size()];
+        for (int i = 0; i < references.length; i++)
+        {
+            references[i] = ids.get(i);
+        }
+        return references;
+    }
+
+    /**
+     * Returns the ranges referenced by formula.
+     */
+    private CellRange[] getReferencedRanges(Formula formula)
+    {
+        ArrayList<CellRange> ranges = new ArrayList<CellRange>();
+        for (String range : formula.getRanges())
+        {
+            ranges.add(rangesById.get(getRangeId(range)));
+        }
+        return ranges.toArray(new CellRange[ranges.size()]);
+    }
+
+    /**
+     * Returns the id of the range written as range, assigning it a new id if
+     * it does not have one.
+     */
+    private int getRangeId(String range)
+    {
+        Integer id = rangeIds.get(range);
+        if (id == null)
+        {
+            id = rangesById.size();
+            rangeIds.put(range, id);
+            rangesById.add(new CellRange(range));
+        }
+        return id;
+    }
+
+    /**
+     * Records the value of the cell with the given id in its column, if its
+     * name is in canonical form and some range covers the column, so that
+     * ranges containing it see the value.
+     */
+    private void storeValue(int id, Object value)
+    {
+        long address = addresses[id];
+        if (address < 0)
+        {
+            return;
+        }
+
+        CellColumn column = columns.get(CellAddress.getColumn(address));
+        if (column == null)
+        {
+            return;
+        }
+        if (value instanceof Double)
+        {
+            column.set(CellAddress.getRow(address), (Double) value);
+        }
+        else
+        {
+            column.clear(CellAddress.getRow(address));
+        }
+    }
+
+    /**
+     * Reserves the row of the cell with the given id in its column, if it is
+     * stored in one, so that storing its value changes no page or tree of the
+     * column but those of its own row.
+     */
+    private void reserveColumn(int id)
+    {
+        long address = addresses[id];
+        if (address < 0)
+        {
+            return;
+        }
+
+        CellColumn column = columns.get(CellAddress.getColumn(address));
+        if (column != null)
+        {
+            column.reserve(CellAddress.getRow(address));
+        }
+    }
+
+    /**
+     * Returns the id of the cell named name, assigning it a new id if it does
+     * not have one.
+     */
+    private int getCellId(String name)
+    {
+        Integer id = cellIds.get(name);
+        if (id == null)
+        {
+            id = cellNames.size();
+            cellIds.put(name, id);
+            cellNames.add(name);
+            cellsById.add(null);
+            referenceErrors.add(null);
+
+            if (id == order.length)
+            {
+                order = Arrays.copyOf(order, 2 * id);
+                addresses = Arrays.copyOf(addresses, 2 * id);
+            }
+            addresses[id] = CellAddress.parse(name);
+            if (firstOrder == Integer.MIN_VALUE)
+            {
+                renumberOrder();
+            }
+            order[id] = --firstOrder;
+        }
+        return id;
+    }
+
+    /**
+     * Gets a cell's contents and returns a string version of the contents. If
+     * its contents is a double d, returns d.toString() If its contents is a
+     * string s, returns s. If its contents is a formula f, returns "="
+     * prepended to f.toString()
+     */
+    private String getCellContentsString(String cell)
+    {
+        Cell c = cells.get(cell);
+
+        if (c.getType() == FORMULA_TYPE)
+        {
+            return "=" + c.getCellContentsText();
+        }
+        else
+        {
+            return c.getCellContentsText();
+        }
+    }
+
+    /**
+     * If name is null, returns null. Else returns Normalize(name)
+     */
+    private String safelyNormalize(String name)
+    {
+        if (name == null)
+        {
+            return null;
+        }
+
+        return getNormalize().normalize(name);
+    }
+
+    /**
+     * A function which returns true if name is a valid cell name and any
+     * additional restrictions imposed by the validator are met, else, returns
+     * false. Used to pass to formulas to validate their variable names
+     */
+    private boolean validator(String name)
+    {
+        if (name == null)
+        {
+            return false;
+        }
+
+        return cellNamePattern.matcher(name).find() && getIsValid().isValid(name);
+    }
+
+    /**
+     * If name is null or invalid, throws an InvalidNameException. Used to
+     * validate cell names passed to the spreadsheet.
+     */
+    private void cellNameValidator(String normalizedName) throws InvalidNameException
+    {
+        if (!validator(normalizedName))
+        {
+            throw new InvalidNameException("Invalid cell name");
+        }
+
+    }
+
+    /**
+     * Checks for circular dependencies then updates dependencies.
+     *
+     * The cells depending on name do not change with its formula, so the
+     * formula makes a cycle only if it references name or a cell depending on
+     * it. They are found before the graph is changed, and as soon as the
+     * formula is found to reference one of them throws CircularException,
+     * leaving the spreadsheet unchanged. Else updates the graph, moves name and the cells depending on
+     * it after every other cell in the topological order, and returns the
+     * plan for recalculating them.
+     */
+    private RecalcPlan checkCircularDependency(String name, Formula formula)
+            throws CircularException, InvalidNameException
+    {
+        int id = getCellId(name);
+        int[] references = getReferencedCells(formula);
+        CellRange[] ranges = getReferencedRanges(formula);
+
+        int[] sortedReferences = references.clone();
+        Arrays.sort(sortedReferences);
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        searched.clear();
+        chainsLength = 0;
+        findDependents(id, ids, sortedReferences, ranges);
+
+        setReferences(id, references, ranges);
+
+        RecalcPlan plan = toPlan(ids);
+        moveToEnd(plan.ids);
+        return plan;
+    }
+
+    /**
+     * Makes the cell with the given id reference the cells with the ids in
+     * references and the cells of ranges, which may be null, in place of
+     * those it referenced, first dropping the cached plans this changes.
+     */
+    private void setReferences(int id, int[] references, CellRange[] ranges)
+    {
+        CellRange[] oldRanges = rangeIndex.getRanges(id);
+        int count = dependencies.dependentCount(id);
+        if (count == 0 && references.length == 0 && oldRanges == null && (ranges == null || ranges.length == 0))
+        {
+            return;
+        }
+
+        plans.invalidate(id);
+        for (int i = 0; i < count; i++)
+        {
+            plans.invalidate(dependencies.getDependent(id, i));
+        }
+        for (int reference : references)
+        {
+            plans.invalidate(reference);
+        }
+        plans.invalidate(oldRanges);
+        plans.invalidate(ranges);
+
+        dependencies.replaceDependents(id, references);
+        rangeIndex.setRanges(id, ranges);
+        dropColumns(oldRanges);
+        addColumns(ranges);
+    }
+
+    /**
+     * Creates the column of every column covered by any of ranges, which may
+     * be null, which has none, from the values of the cells in it. Every
+     * cell is looked at once however many columns are created.
+     */
+    private void addColumns(CellRange[] ranges)
+    {
+        HashMap<Integer, CellColumn> added = new HashMap<Integer, CellColumn>();
+        for (int i = 0; ranges != null && i < ranges.length; i++)
+        {
+            for (int column = ranges[i].firstColumn; column <= ranges[i].lastColumn; column++)
+            {
+                if (!columns.containsKey(column) && !added.containsKey(column))
+                {
+                    added.put(column, new CellColumn());
+                }
+            }
+        }
+        if (added.isEmpty())
+        {
+            return;
+        }
+
+        for (int id = 0; id < cellsById.size(); id++)
+        {
+            Cell c = cellsById.get(id);
+            if (c != null && addresses[id] >= 0 && c.getCellValue() instanceof Double)
+            {
+                CellColumn column = added.get(CellAddress.getColumn(addresses[id]));
+                if (column != null)
+                {
+                    column.set(CellAddress.getRow(addresses[id]), (Double) c.getCellValue());
+                }
+            }
+        }
+        columns.putAll(added);
+    }
+
+    /**
+     * Drops the column of every column covered by any of ranges, which may be
+     * null, which no range covers any more.
+     */
+    private void dropColumns(CellRange[] ranges)
+    {
+        for (int i = 0; ranges != null && i < ranges.length; i++)
+        {
+            for (int column = ranges[i].firstColumn; column <= ranges[i].lastColumn; column++)
+            {
+                if (!rangeIndex.coversColumn(column))
+                {
+                    columns.remove(column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes named cell's dependents from the graph then removes it from cells
+     * per invariant
+     */
+    private void emptyCell(String name)
+    {
+        setReferences(getCellId(name), new int[0], null);
+        cells.remove(name);
+        cellsById.set(getCellId(name), null);
+        storeValue(getCellId(name), null);
+    }
+
+    /**
+     * Takes a cell name and the corresponding cell and adds it to the
+     * dictionary. If the cell is replacing a cell which had a formula in it,
+     * removes the cells dependents.
+     */
+    private void addCellToHashMap(String name, Cell cell)
+    {
+        // Do not want to overwrite new formula's dependents 
+        //if this cell is a formula type
+        if (cells.containsKey(name)
+                && cells.get(name).getType() == CellType.FORMULA_TYPE
+                && cell.getType() != CellType.FORMULA_TYPE)
+        {
+            setReferences(getCellId(name), new int[0], null);
+        }
+
+        cells.put(name, cell);
+        cellsById.set(getCellId(name), cell);
+        storeValue(getCellId(name), cell.getCellValue());
+
+    }
+
+    /**
+     * Attempts to read in the Spreadsheet saved at filename. Upon successful
+     * parsing, returns the handler that was used to read in the spreadsheet
+     * which will contain a method for getting a HashMap of every cell and cell
+     * contents of the file, and a method for getting the version of the
+     * spreadsheet.
+     *
+     * If parsing is unsuccessful will throw SpreadsheetReadWriteException
+     */
+    private SpreadsheetDocumentHandler parseSpreadsheetXML(String filename) throws SpreadsheetReadWriteException
+    {
+        try
+        {
+            SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+            SAXParser parser = parserFactory.newSAXParser();
+
+            XMLReader reader = parser.getXMLReader();
+
+            SpreadsheetDocumentHandler handler = new SpreadsheetDocumentHandler();
+            reader.setContentHandler(handler);
+            reader.parse(new InputSource(new FileInputStream(filename)));
+
+            return handler;
+
+        }
+        catch (Exception e)
+        {
+            throw new SpreadsheetReadWriteException("Error reading file: " + filename);
+        }
+    }
+
+    /**
+     * A read only set of the names of the cells with the given distinct ids,
+     * iterated in the order of the ids. A name is only looked up as the set
+     * is iterated, and the names are only hashed if the set is asked whether
+     * it contains one, so returning the cells of a recalculation does not
+     * cost more than the recalculation.
+     */
+    private class CellNameSet extends AbstractSet<String>
+    {
+
+        // The ids of the cells, and their names once they have been hashed.
+        private final int[] ids;
+        private HashSet<String> hashed;
+
+        CellNameSet(int[] ids)
+        {
+            this.ids = ids;
+        }
+
+        @Override
+        public Iterator<String> iterator()
+        {
+            return new Iterator<String>()
+            {
+                // The position of the next id.
+                private int next;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return next < ids.length;
+                }
+
+                @Override
+                public String next()
+                {
+                    if (next >= ids.length)
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    return cellNames.get(ids[next++]);
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return ids.length;
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            if (hashed == null)
+            {
+                hashed = new HashSet<String>(this);
+            }
+            return hashed.contains(o);
+        }
+    }
+
+    /**
+     * The state of a concurrent recalculation, in which each cell is
+     * calculated once every cell it depends on has been. The cells are known
+     * by their positions in the topological order they were given, the first
+     * of which is the cell that changed.
+     */
+    private class Dataflow
+    {
+
+        // The ids of the cells and the units of the plan, the cost of each
+        // unit, the number of its inputs which are not yet done, and whether
+        // any of them came out with a different value.
+        private final int[] ids;
+        private final int[] units;
+        private final int[] costs;
+        private final AtomicIntegerArray waiting;
+        private final boolean[] inputChanged;
+
+        Dataflow(int[] ids, int[] units, int[] costs, AtomicIntegerArray waiting)
+        {
+            this.ids = ids;
+            this.units = units;
+            this.costs = costs;
+            this.waiting = waiting;
+            inputChanged = new boolean[costs.length];
+        }
+
+        /**
+         * Calculates the unit at position p, if it starts with the cell that
+         * changed or an input of it changed, and stores its values. Then
+         * counts it done for each unit depending on its last cell, passing
+         * the position of those with no inputs left to ready.
+         */
+        void finish(int p, IntConsumer ready)
+        {
+            boolean changed = false;
+            if (p == 0 || inputChanged[p])
+            {
+                changed = recalculateUnit(ids, units[p], units[p + 1], true);
+            }
+
+            boolean markChanged = changed;
+            forEachDependent(ids[units[p + 1] - 1], dependent ->
+            {
+                if (positions.contains(dependent))
+                {
+                    int q = positions.get(dependent);
+                    if (markChanged)
+                    {
+                        inputChanged[q] = true;
+                    }
+                    if (waiting.decrementAndGet(q) == 0)
+                    {
+                        ready.accept(q);
+                    }
+                }
+            });
+        }
+
+        /**
+         * A task finishing a batch of units and then the units they make
+         * ready, keeping those costing up to BATCH_COST to finish itself and
+         * forking the rest as new batches once they cost as much. The task
+         * completes when every batch forked from it has.
+         */
+        private class Batch extends CountedCompleter<Void> implements IntConsumer
+        {
+
+            private static final long serialVersionUID = 1L;
+
+            // The positions of the units this task is to finish, the last of
+            // which is finished next, and their total cost.
+            private int[] stack;
+            private int top;
+            private int planned;
+
+            // The positions of ready units to be forked as a batch, and their
+            // total cost.
+            private int[] handOff = new int[16];
+            private int handOffCount;
+            private int handOffCost;
+
+            Batch(CountedCompleter<?> completer, int[] batch, int count)
+            {
+                super(completer);
+                stack = batch;
+                top = count;
+                for (int i = 0; i < count; i++)
+                {
+                    planned += costs[batch[i]];
+                }
+            }
+
+            @Override
+            public void compute()
+            {
+                while (top > 0)
+                {
+                    int p = stack[--top];
+                    planned -= costs[p];
+                    finish(p, this);
+
+                    // ready units too cheap to be worth a task of their own
+                    // are finished here
+                    for (int i = 0; i < handOffCount; i++)
+                    {
+                        push(handOff[i]);
+                    }
+                    handOffCount = 0;
+                    handOffCost = 0;
+                }
+                tryComplete();
+            }
+
+            /**
+             * Takes the unit at position p, which is ready to be finished.
+             */
+            @Override
+            public void accept(int p)
+            {
+                if (top == 0 || planned + costs[p] <= BATCH_COST)
+                {
+                    push(p);
+                    return;
+                }
+
+                if (handOffCount == handOff.length)
+                {
+                    handOff = Arrays.copyOf(handOff, 2 * handOffCount);
+                }
+                handOff[handOffCount++] = p;
+                handOffCost += costs[p];
+                if (handOffCost >= BATCH_COST)
+                {
+                    addToPendingCount(1);
+                    new Batch(this, handOff, handOffCount).fork();
+                    handOff = new int[16];
+                    handOffCount = 0;
+                    handOffCost = 0;
+                }
+            }
+
+            /**
+             * Adds the unit at position p to the units this task finishes.
+             */
+            private void push(int p)
+            {
+                if (top == stack.length)
+                {
+                    stack = Arrays.copyOf(stack, Math.max(16, 2 * top));
+                }
+                stack[top++] = p;
+                planned += costs[p];
+            }
+        }
+    }
+
+    /**
+     * Provides a lookup function for evaluating functions contained in this
+     * spreadsheet, whose variables have been resolved to cell ids. A cell
+     * without a numeric value is reported as NaN along with a shared error,
+     * rather than by throwing an exception.
+     */
+    private class LookupCellId implements IntLookup
+    {
+
+        /**
+         * If the value of the cell with the given id is a double, returns
+         * that double else returns NaN.
+         */
+        @Override
+        public double lookup(int id)
+        {
+            Cell cell = cellsById.get(id);
+            if (cell != null && cell.hasNumber())
+            {
+                return cell.getNumber();
+            }
+            return Double.NaN;
+        }
+
+        /**
+         * If the value of the cell with the given id is not a double, returns
+         * the error of formulas referencing it, else returns null.
+         */
+        @Override
+        public FormulaError getError(int id)
+        {
+            Cell cell = cellsById.get(id);
+            if (cell != null && cell.hasNumber())
+            {
+                return null;
+            }
+
+            FormulaError error = referenceErrors.get(id);
+            if (error == null)
+            {
+                error = new FormulaError("Could not look up the value of variable" + cellNames.get(id));
+                referenceErrors.set(id, error);
+            }
+            return error;
+        }
+
+        /**
+         * Returns the aggregate of the numeric values of the cells in the
+         * range with the given id, found from the trees of its columns.
+         */
+        @Override
+        public double aggregate(int id, Aggregate aggregate)
+        {
+            return rangesById.get(id).aggregate(aggregate, columns);
+        }
+
     }
 
 }
@@ -0,0 +1,55 @@
+package ssUtils;
+
+/**
+ * The aggregate functions which may be called in a Formula. Each takes one or
+ * more arguments separated by commas, where an argument is either an
+ * expression or a range of cells such as "A1:B10".
+ *
+ * Only the numeric values of a range are aggregated. Cells in a range which are
+ * empty, or whose value cannot be looked up as a number, are ignored.
+ */
+public enum Aggregate
+{
+    // The sum of the values, which is 0 if there are none.
+    SUM,
+
+    // The sum of the values divided by their number. A FormulaError if there
+    // are none.
+    AVERAGE,
+
+    // The smallest of the values, which is 0 if there are none.
+    MIN,
+
+    // The largest of the values, which is 0 if there are none.
+    MAX,
+
+    // The number of values.
+    COUNT;
+
+    // Every aggregate, indexed by ordinal.
+    private static final Aggregate[] values = values();
+
+    /**
+     * Returns the aggregate with the given ordinal.
+     */
+    static Aggregate of(int ordinal)
+    {
+        return values[ordinal];
+    }
+
+    /**
+     * Returns the aggregate named name, ignoring case, or null if there is no
+     * such aggregate.
+     */
+    static Aggregate forName(String name)
+    {
+        for (Aggregate aggregate : values)
+        {
+            if (aggregate.name().equalsIgnoreCase(name))
+            {
+                return aggregate;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,188 @@
+package ssUtils;
+
+/**
+ * Helpful static methods for converting between cell names and column and row
+ * numbers.
+ *
+ * A cell name is in canonical form if it consists of one to six upper case
+ * letters followed by a row number of at most nine digits, written without
+ * leading zeros. Columns are numbered from 1, so that A is 1, Z is 26 and AA
+ * is 27. Only canonical names are converted, which guarantees that converting
+ * an address back to a name returns the original name.
+ *
+ * An address packs a column and a row into a single long, so that names can be
+ * converted without allocating.
+ *
+ * A reference to a cell in a formula is its canonical name, in which the
+ * column, the row or both may be anchored by a preceding '$', as in "$A$1" or
+ * "A$1". An anchored part stays the same when the formula is filled into other
+ * cells, while the other parts move with the formula.
+ */
+public final class CellAddress
+{
+
+    private static final int MAX_LETTERS = 6;
+    private static final int MAX_DIGITS = 9;
+
+    private CellAddress()
+    {
+    }
+
+    /**
+     * Returns the address of the cell named name, or -1 if name is null or not
+     * in canonical form.
+     */
+    public static long parse(String name)
+    {
+        if (name == null)
+        {
+            return -1;
+        }
+
+        int length = name.length();
+        int i = 0;
+        int column = 0;
+        while (i < length && name.charAt(i) >= 'A' && name.charAt(i) <= 'Z')
+        {
+            column = column * 26 + (name.charAt(i) - 'A' + 1);
+            i++;
+        }
+        int letters = i;
+        int digits = length - letters;
+        if (letters == 0 || letters > MAX_LETTERS || digits == 0 || digits > MAX_DIGITS)
+        {
+            return -1;
+        }
+        if (name.charAt(i) == '0' && digits > 1)
+        {
+            return -1;
+        }
+
+        int row = 0;
+        for (; i < length; i++)
+        {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                return -1;
+            }
+            row = row * 10 + (c - '0');
+        }
+
+        return toAddress(column, row);
+    }
+
+    /**
+     * Returns the address of the cell referred to by reference, a canonical
+     * name which may have anchors, or -1 if reference is null or not of that
+     * form.
+     */
+    public static long parseReference(String reference)
+    {
+        if (reference == null || reference.indexOf('$') < 0)
+        {
+            return parse(reference);
+        }
+
+        // at most one anchor before the letters and one before the digits
+        int start = (reference.charAt(0) == '$') ? 1 : 0;
+        int anchor = reference.indexOf('$', start);
+        if (anchor < 0)
+        {
+            return parse(reference.substring(start));
+        }
+        if (anchor == start || anchor == reference.length() - 1 || !isLetter(reference.charAt(anchor - 1))
+                || isLetter(reference.charAt(anchor + 1)))
+        {
+            return -1;
+        }
+        return parse(reference.substring(start, anchor) + reference.substring(anchor + 1));
+    }
+
+    /**
+     * Returns true if the column of reference is anchored.
+     */
+    public static boolean isColumnAnchored(String reference)
+    {
+        return reference.charAt(0) == '$';
+    }
+
+    /**
+     * Returns true if the row of reference is anchored.
+     */
+    public static boolean isRowAnchored(String reference)
+    {
+        return reference.indexOf('$', 1) > 0;
+    }
+
+    /**
+     * Returns the reference to the cell in the given column and row, with its
+     * column and row anchored as given.
+     */
+    public static String toReference(int column, int row, boolean columnAnchored, boolean rowAnchored)
+    {
+        String name = toName(column, row);
+        if (!columnAnchored && !rowAnchored)
+        {
+            return name;
+        }
+
+        int digits = 0;
+        while (isLetter(name.charAt(digits)))
+        {
+            digits++;
+        }
+        return (columnAnchored ? "$" : "") + name.substring(0, digits) + (rowAnchored ? "$" : "")
+                + name.substring(digits);
+    }
+
+    /**
+     * Returns the address of the cell in the given column and row.
+     */
+    public static long toAddress(int column, int row)
+    {
+        return ((long) column << 32) | row;
+    }
+
+    /**
+     * Returns the column of an address.
+     */
+    public static int getColumn(long address)
+    {
+        return (int) (address >>> 32);
+    }
+
+    /**
+     * Returns the row of an address.
+     */
+    public static int getRow(long address)
+    {
+        return (int) address;
+    }
+
+    /**
+     * Returns the canonical name of the cell in the given column and row.
+     */
+    public static String toName(int column, int row)
+    {
+        char[] letters = new char[MAX_LETTERS];
+        int start = MAX_LETTERS;
+        for (int c = column; c > 0; c = (c - 1) / 26)
+        {
+            letters[--start] = (char) ('A' + (c - 1) % 26);
+        }
+
+        StringBuilder name = new StringBuilder(MAX_LETTERS + MAX_DIGITS);
+        name.append(letters, start, MAX_LETTERS - start);
+        name.append(row);
+        return name.toString();
+    }
+
+    /**
+     * Returns true if c is an upper case letter.
+     */
+    private static boolean isLetter(char c)
+    {
+        return c >= 'A' && c <= 'Z';
+    }
+}
@@ -0,0 +1,17 @@
+package ssUtils;
+
+/**
+ * The interface implemented by classes that FormulaJit generates for hot
+ * formulas. An implementation computes one formula as straight-line double
+ * arithmetic.
+ */
+interface CompiledExpression
+{
+
+    /**
+     * Computes the formula. The value of variable slot i is read from
+     * values[base + i]. If a division by zero is encountered, values[base +
+     * slotCount] is set to a non zero value and 0 is returned.
+     */
+    public double evaluate(double[] values, int base);
+}
@@ -1,7 +1,12 @@
 package ssUtils;
 
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 
 
 //@formatter:off
@@ -28,30 +33,38 @@ import java.util.HashSet;
  * dependents("d") = {"d"} dependees("a") = {} dependees("b") = {"a"}
  * dependees("c") = {"a"} dependees("d") = {"b", "d"}
  *
+ * Each string is given an integer id the first time it is seen, and the pairs
+ * are kept in an IntDependancyGraph of those ids.
+ *
+ * getDependents and getDependees return copies which may be kept while the
+ * graph changes. Callers which only iterate may instead use the read-only
+ * views, or pass a Consumer to forEachDependent and forEachDependee, neither of
+ * which copies anything. A view's iterator throws a
+ * ConcurrentModificationException if the graph changes while it is in use.
  */
 //@formatter:on
 public class DependancyGraph
 {
 
-    // This graph represented as an adjacency list. If an element has no
-    // dependents the key for that element will not be in this dictionary.
-    private HashMap<String, HashSet<String>> dependentsAdjacencyList;
+    // The pairs of this graph, as pairs of the ids of their strings.
+    private IntDependancyGraph graph;
 
-    // A reverse graph of dependents represented as an adjacency list.
-    // If an element has no dependees they key will not be in the dictionary.
-    private HashMap<String, HashSet<String>> dependeesAdjacencyList;
+    // The id of each string seen so far, and the string of each id.
+    private HashMap<String, Integer> ids;
+    private ArrayList<String> names;
 
-    // Holds the size of this DependencyGraph.
-    private int size;
+    // The number of times this graph has been changed, which the iterators of
+    // views check.
+    private int changes;
 
     /**
      * Creates an empty DependencyGraph.
      */
     public DependancyGraph()
     {
-        dependentsAdjacencyList = new HashMap<String, HashSet<String>>();
-        dependeesAdjacencyList = new HashMap<String, HashSet<String>>();
-        size = 0;
+        graph = new IntDependancyGraph();
+        ids = new HashMap<String, Integer>();
+        names = new ArrayList<String>();
     }
 
     /**
@@ -59,7 +72,7 @@ public class DependancyGraph
      */
     public int size()
     {
-        return size;
+        return graph.size();
     }
 
     /**
@@ -67,14 +80,8 @@ public class DependancyGraph
      */
     public int dependeeSize(String s)
     {
-        if (dependeesAdjacencyList.containsKey(s))
-        {
-            return dependeesAdjacencyList.get(s).size();
-        }
-        else
-        {
-            return 0;
-        }
+        Integer id = ids.get(s);
+        return (id == null) ? 0 : graph.dependeeCount(id);
     }
 
     /**
@@ -82,7 +89,8 @@ public class DependancyGraph
      */
     public boolean hasDependents(String s)
     {
-        return dependentsAdjacencyList.containsKey(s);
+        Integer id = ids.get(s);
+        return id != null && graph.hasDependents(id);
     }
 
     /**
@@ -90,7 +98,8 @@ public class DependancyGraph
      */
     public boolean hasDependees(String s)
     {
-        return dependeesAdjacencyList.containsKey(s);
+        Integer id = ids.get(s);
+        return id != null && graph.hasDependees(id);
     }
 
     /**
@@ -98,15 +107,8 @@ public class DependancyGraph
      */
     public Iterable<String> getDependents(String s)
     {
-        if (hasDependents(s))
-        {
-            // want copy of set to avoid changing underlying structure
-            return copyIterableToHashSet(dependentsAdjacencyList.get(s));
-        }
-        else
-        {
-            return new HashSet<String>();
-        }
+        Integer id = ids.get(s);
+        return (id == null) ? new HashSet<String>() : toNames(graph.getDependents(id));
     }
 
     /**
@@ -114,14 +116,49 @@ public class DependancyGraph
      */
     public Iterable<String> getDependees(String s)
     {
-        if (hasDependees(s))
+        Integer id = ids.get(s);
+        return (id == null) ? new HashSet<String>() : toNames(graph.getDependees(id));
+    }
+
+    /**
+     * Returns a read-only view of the dependents of s, valid until this graph
+     * is next changed.
+     */
+    public Iterable<String> getDependentsView(String s)
+    {
+        return new View(ids.get(s), true);
+    }
+
+    /**
+     * Returns a read-only view of the dependees of s, valid until this graph
+     * is next changed.
+     */
+    public Iterable<String> getDependeesView(String s)
+    {
+        return new View(ids.get(s), false);
+    }
+
+    /**
+     * Passes each dependent of s to action, which must not change this graph.
+     */
+    public void forEachDependent(String s, Consumer<String> action)
+    {
+        Integer id = ids.get(s);
+        if (id != null)
         {
-            // want copy of set to avoid changing underlying structure
-            return copyIterableToHashSet(dependeesAdjacencyList.get(s));
+            graph.forEachDependent(id, t -> action.accept(names.get(t)));
         }
-        else
+    }
+
+    /**
+     * Passes each dependee of s to action, which must not change this graph.
+     */
+    public void forEachDependee(String s, Consumer<String> action)
+    {
+        Integer id = ids.get(s);
+        if (id != null)
         {
-            return new HashSet<String>();
+            graph.forEachDependee(id, t -> action.accept(names.get(t)));
         }
     }
 
@@ -130,14 +167,8 @@ public class DependancyGraph
      */
     public void addDependency(String s, String t)
     {
-        boolean added;
-        added = addKeyAndHashValue(dependentsAdjacencyList, s, t);
-        added = addKeyAndHashValue(dependeesAdjacencyList, t, s) || added;
-
-        if (added)
-        {
-            size++;
-        }
+        changes++;
+        graph.addDependency(idOf(s), idOf(t));
     }
 
     /**
@@ -145,13 +176,12 @@ public class DependancyGraph
      */
     public void removeDependency(String s, String t)
     {
-        boolean removed;
-        removed = removeKeyAndHashValue(dependentsAdjacencyList, s, t);
-        removed = removeKeyAndHashValue(dependeesAdjacencyList, t, s) || removed;
-
-        if (removed)
+        Integer sId = ids.get(s);
+        Integer tId = ids.get(t);
+        if (sId != null && tId != null)
         {
-            size--;
+            changes++;
+            graph.removeDependency(sId, tId);
         }
     }
 
@@ -161,18 +191,8 @@ public class DependancyGraph
      */
     public void replaceDependents(String s, Iterable<String> newDependents)
     {
-        // getDependents(s) returns a copy making 
-        // changing structure of graphs safe
-        Iterable<String> oldDependents = getDependents(s);
-        for (String r : oldDependents)
-        {
-            removeDependency(s, r);
-        }
-
-        for (String t : newDependents)
-        {
-            addDependency(s, t);
-        }
+        changes++;
+        graph.replaceDependents(idOf(s), toIds(newDependents));
     }
 
     /**
@@ -181,90 +201,109 @@ public class DependancyGraph
      */
     public void replaceDependees(String s, Iterable<String> newDependees)
     {
+        changes++;
+        graph.replaceDependees(idOf(s), toIds(newDependees));
+    }
 
-        // getDependents(s) returns a copy making 
-        // changing structure of graphs safe
-        Iterable<String> oldDependees = getDependees(s);
-        for (String r : oldDependees)
-        {
-            removeDependency(r, s);
-        }
-
-        for (String t : newDependees)
+    /* Some helper methods below */
+    /**
+     * Returns the id of s, giving it a new id if it does not have one.
+     */
+    private int idOf(String s)
+    {
+        Integer id = ids.get(s);
+        if (id == null)
         {
-            addDependency(t, s);
+            id = names.size();
+            ids.put(s, id);
+            names.add(s);
         }
+        return id;
     }
 
-    /* Some helper methods below */
     /**
-     * Returns a new HashSet<String> containing all Strings provided by the
-     * original Iterable
+     * Returns the ids of the strings provided by the Iterable.
      */
-    private static HashSet<String> copyIterableToHashSet(Iterable<String> original)
+    private int[] toIds(Iterable<String> strings)
     {
-        if (original == null)
+        ArrayList<Integer> list = new ArrayList<Integer>();
+        for (String s : strings)
         {
-            return new HashSet<String>();
+            list.add(idOf(s));
         }
 
-        HashSet<String> copy = new HashSet<String>();
-
-        for (String s : original)
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
         {
-            copy.add(s);
+            array[i] = list.get(i);
         }
-
-        return copy;
+        return array;
     }
 
     /**
-     * Takes two strings, a key and a value. If the key exists, in dict, adds
-     * the corresponding value to the HashSet. If the key does not exist, adds
-     * it to dict, and adds value to its new corresponding HashSet.
-     *
-     * Returns true if dict or its underlying values were changed.
+     * Returns a new HashSet<String> containing the strings with the given
+     * ids.
      */
-    private static boolean addKeyAndHashValue(HashMap<String, HashSet<String>> dict, String key, String value)
+    private HashSet<String> toNames(int[] idArray)
     {
-        if (dict.containsKey(key))
-        {
-            return dict.get(key).add(value);
-        }
-        else
+        HashSet<String> set = new HashSet<String>();
+        for (int id : idArray)
         {
-            HashSet<String> set = new HashSet<String>();
-            set.add(value);
-            dict.put(key, set);
-            return true;
+            set.add(names.get(id));
         }
+        return set;
     }
 
     /**
-     * Takes two strings, a key and a value. If the key exists, in dict, removes
-     * the corresponding value from the HashSet. If the underlying HashSet
-     * becomes empty, removes the key from dict.
-     *
-     * Returns true if dict or its underlying values were changed.
+     * A read-only view of the dependents or dependees of one string.
      */
-    private static boolean removeKeyAndHashValue(HashMap<String, HashSet<String>> dict, String key, String value)
+    private class View implements Iterable<String>
     {
 
-        // We found the key, lets try to remove the edge leading to the value
-        if (dict.containsKey(key) && dict.get(key).remove(value))
-        {
-            // because we removed a value, we must follow the invariant, if there are no
-            // more edges from the key, we must remove the underlying HashSet
-            if (dict.get(key).size() < 1)
-            {
-                dict.remove(key);
-            }
+        // The id of the string, null if it has none, and whether the view is
+        // of its dependents rather than its dependees.
+        private final Integer id;
+        private final boolean ofDependents;
 
-            return true; // we removed something
+        View(Integer id, boolean ofDependents)
+        {
+            this.id = id;
+            this.ofDependents = ofDependents;
         }
 
-        return false; // we didn't remove anything
+        @Override
+        public Iterator<String> iterator()
+        {
+            final int expectedChanges = changes;
+            final int count = (id == null) ? 0 : ofDependents ? graph.dependentCount(id) : graph.dependeeCount(id);
+            return new Iterator<String>()
+            {
+                // The position of the next string.
+                private int next;
+
+                @Override
+                public boolean hasNext()
+                {
+                    return next < count;
+                }
+
+                @Override
+                public String next()
+                {
+                    if (changes != expectedChanges)
+                    {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (next >= count)
+                    {
+                        throw new NoSuchElementException();
+                    }
+                    int t = ofDependents ? graph.getDependent(id, next) : graph.getDependee(id, next);
+                    next++;
+                    return names.get(t);
+                }
+            };
+        }
     }
 
-    
 }
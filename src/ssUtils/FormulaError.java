@@ -3,14 +3,22 @@ package ssUtils;
 /**
  * Used as a possible return value of the Formula.evaluate method. Contains an
  * explanation for why the value of an evaluated formula could not be calculated
+ *
+ * A FormulaError is immutable, so a single instance can be shared by every
+ * formula failing for the same reason.
  */
 public class FormulaError
 {
 
+    /**
+     * The error of every formula that divides by zero.
+     */
+    public static final FormulaError DIVIDE_BY_ZERO = new FormulaError("Cannot divide by zero");
+
     /**
      * The reason why this FormulaError was created.
      */
-    private String reason;
+    private final String reason;
 
     /**
      * Constructs a FormulaError containing the reason it is an error.
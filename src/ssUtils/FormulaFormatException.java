@@ -6,6 +6,12 @@ package ssUtils;
 public class FormulaFormatException extends RuntimeException
 {
 
+    /**
+     * The position in the formula at which the problem was found, or -1 if
+     * it is not known.
+     */
+    private int position = -1;
+
     /**
      * Constructs a new FormulaFormatException with the given message and
      * Throwable cause of this exception.
@@ -25,4 +31,23 @@ public class FormulaFormatException extends RuntimeException
     {
         super(message);
     }
+
+    /**
+     * Constructs a FormulaFormatException using the given message and the
+     * position in the formula at which the problem was found.
+     */
+    public FormulaFormatException(String message, int position)
+    {
+        super(message);
+        this.position = position;
+    }
+
+    /**
+     * Returns the position in the formula at which the problem was found, or
+     * -1 if it is not known.
+     */
+    public int getPosition()
+    {
+        return position;
+    }
 }
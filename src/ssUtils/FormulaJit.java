@@ -0,0 +1,440 @@
+package ssUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates JVM bytecode for hot formula programs. Each generated class
+ * implements CompiledExpression and computes one program as straight-line
+ * double arithmetic, leaving the JVM free to compile it like hand written
+ * code.
+ *
+ * Classes are defined as hidden classes when the running JVM supports them
+ * (Java 15 and later) so they can be unloaded once their formula is no longer
+ * used. On older JVMs they are defined as ordinary classes in this package.
+ */
+final class FormulaJit
+{
+
+    /**
+     * The number of interpreted evaluations after which a program is
+     * compiled to bytecode.
+     */
+    static final int THRESHOLD = Integer.getInteger("ssUtils.jitThreshold", 1000);
+
+    // Programs longer than this are left to the interpreter, which keeps
+    // generated methods well below the JVM's 64k code size limit.
+    private static final int MAX_PROGRAM_LENGTH = 2000;
+
+    // True if hot programs should be compiled, false to force every formula
+    // to be interpreted.
+    private static volatile boolean enabled = !Boolean.getBoolean("ssUtils.interpretedOnly");
+
+    // Used to give every generated class a unique name.
+    private static final AtomicLong classCount = new AtomicLong();
+
+    // Generated classes are defined into this package through this lookup.
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // Lookup.defineHiddenClass and an empty array of its class options, or
+    // null if the running JVM does not support hidden classes.
+    private static final Method defineHiddenClass;
+    private static final Object noClassOptions;
+
+    static
+    {
+        Method define = null;
+        Object options = null;
+        try
+        {
+            Class<?> optionType = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+            options = Array.newInstance(optionType, 0);
+            define = MethodHandles.Lookup.class.getMethod("defineHiddenClass", byte[].class, boolean.class,
+                    options.getClass());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            define = null;
+        }
+        defineHiddenClass = define;
+        noClassOptions = options;
+    }
+
+    private FormulaJit()
+    {
+    }
+
+    /**
+     * Returns true if hot programs are compiled to bytecode.
+     */
+    static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables compilation of hot programs. Programs which have
+     * already been compiled are not affected.
+     */
+    static void setEnabled(boolean enable)
+    {
+        enabled = enable;
+    }
+
+    /**
+     * Generates, defines and instantiates a class computing the given program.
+     * Returns null if the program cannot be compiled.
+     */
+    static CompiledExpression compile(byte[] opcodes, int[] operands, double[] constants, int slotCount,
+            int maxStackDepth)
+    {
+        if (opcodes.length > MAX_PROGRAM_LENGTH)
+        {
+            return null;
+        }
+
+        try
+        {
+            String name = "ssUtils/FormulaJit$Expression" + classCount.incrementAndGet();
+            byte[] classFile = new ClassWriter(name).write(opcodes, operands, constants, slotCount, maxStackDepth);
+
+            Class<?> expressionClass;
+            if (defineHiddenClass != null)
+            {
+                MethodHandles.Lookup hidden = (MethodHandles.Lookup) defineHiddenClass.invoke(lookup, classFile, true,
+                        noClassOptions);
+                expressionClass = hidden.lookupClass();
+            }
+            else
+            {
+                expressionClass = lookup.defineClass(classFile);
+            }
+
+            return (CompiledExpression) expressionClass.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError | IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the class file of a single CompiledExpression implementation.
+     *
+     * The class file uses version 49, which is verified by type inference, so
+     * the branches guarding divisions do not need stack map frames.
+     */
+    private static class ClassWriter
+    {
+
+        // JVM opcodes used by generated code.
+        private static final int ICONST_0 = 0x03;
+        private static final int DCONST_0 = 0x0e;
+        private static final int DCONST_1 = 0x0f;
+        private static final int BIPUSH = 0x10;
+        private static final int SIPUSH = 0x11;
+        private static final int LDC_W = 0x13;
+        private static final int LDC2_W = 0x14;
+        private static final int ALOAD_0 = 0x2a;
+        private static final int ALOAD_1 = 0x2b;
+        private static final int ILOAD_2 = 0x1c;
+        private static final int DALOAD = 0x31;
+        private static final int DASTORE = 0x52;
+        private static final int DUP2 = 0x5c;
+        private static final int IADD = 0x60;
+        private static final int DADD = 0x63;
+        private static final int DSUB = 0x67;
+        private static final int DMUL = 0x6b;
+        private static final int DDIV = 0x6f;
+        private static final int DCMPL = 0x97;
+        private static final int IFNE = 0x9a;
+        private static final int DRETURN = 0xaf;
+        private static final int RETURN = 0xb1;
+        private static final int INVOKESPECIAL = 0xb7;
+
+        // Constant pool tags.
+        private static final int UTF8 = 1;
+        private static final int INTEGER = 3;
+        private static final int DOUBLE = 6;
+        private static final int CLASS = 7;
+        private static final int METHOD_REF = 10;
+        private static final int NAME_AND_TYPE = 12;
+
+        private final String className;
+
+        // The constant pool, excluding its entry count.
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final DataOutputStream poolOut = new DataOutputStream(pool);
+
+        // The index the next constant pool entry will receive.
+        private int poolSize = 1;
+
+        // Already written double and int constants, keyed by their bits.
+        private final HashMap<Long, Integer> doubleEntries = new HashMap<Long, Integer>();
+        private final HashMap<Integer, Integer> intEntries = new HashMap<Integer, Integer>();
+
+        ClassWriter(String className)
+        {
+            this.className = className;
+        }
+
+        /**
+         * Returns the bytes of a class implementing CompiledExpression with
+         * the given program.
+         */
+        byte[] write(byte[] opcodes, int[] operands, double[] constants, int slotCount, int maxStackDepth)
+                throws IOException
+        {
+            int thisClass = classEntry(className);
+            int objectClass = classEntry("java/lang/Object");
+            int expressionInterface = classEntry("ssUtils/CompiledExpression");
+            int objectInit = methodEntry(objectClass, "<init>", "()V");
+            int initName = utf8Entry("<init>");
+            int initType = utf8Entry("()V");
+            int evaluateName = utf8Entry("evaluate");
+            int evaluateType = utf8Entry("([DI)D");
+            int codeName = utf8Entry("Code");
+
+            ByteArrayOutputStream code = new ByteArrayOutputStream();
+            for (int pc = 0; pc < opcodes.length; pc++)
+            {
+                switch (opcodes[pc])
+                {
+                    case FormulaProgram.PUSH_CONSTANT:
+                        pushDouble(code, constants[operands[pc]]);
+                        break;
+                    case FormulaProgram.PUSH_VARIABLE:
+                        code.write(ALOAD_1);
+                        code.write(ILOAD_2);
+                        pushInt(code, operands[pc]);
+                        code.write(IADD);
+                        code.write(DALOAD);
+                        break;
+                    case FormulaProgram.ADD:
+                        code.write(DADD);
+                        break;
+                    case FormulaProgram.SUBTRACT:
+                        code.write(DSUB);
+                        break;
+                    case FormulaProgram.MULTIPLY:
+                        code.write(DMUL);
+                        break;
+                    case FormulaProgram.DIVIDE:
+                        writeDivide(code, slotCount);
+                        break;
+                    default:
+                        throw new IOException("Unsupported opcode " + opcodes[pc]);
+                }
+            }
+            code.write(DRETURN);
+
+            ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(classFile);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolSize);
+            pool.writeTo(out);
+            out.writeShort(0x0010 | 0x0020); // final, super
+            out.writeShort(thisClass);
+            out.writeShort(objectClass);
+            out.writeShort(1);
+            out.writeShort(expressionInterface);
+            out.writeShort(0); // fields
+            out.writeShort(2); // methods
+
+            // public <init>() { super(); }
+            byte[] init = { (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+                (byte) RETURN };
+            writeMethod(out, 0x0001, initName, initType, codeName, 1, 1, init);
+
+            // public double evaluate(double[] values, int base)
+            writeMethod(out, 0x0001, evaluateName, evaluateType, codeName, 2 * maxStackDepth + 4, 3,
+                    code.toByteArray());
+
+            out.writeShort(0); // attributes
+            out.flush();
+            return classFile.toByteArray();
+        }
+
+        /**
+         * Writes a division of the top two values. If the divisor is zero,
+         * the error flag following the variable slots is set and 0 is
+         * returned.
+         */
+        private void writeDivide(ByteArrayOutputStream code, int slotCount) throws IOException
+        {
+            ByteArrayOutputStream error = new ByteArrayOutputStream();
+            error.write(ALOAD_1);
+            error.write(ILOAD_2);
+            pushInt(error, slotCount);
+            error.write(IADD);
+            error.write(DCONST_1);
+            error.write(DASTORE);
+            error.write(DCONST_0);
+            error.write(DRETURN);
+
+            int offset = 3 + error.size();
+            code.write(DUP2);
+            code.write(DCONST_0);
+            code.write(DCMPL);
+            code.write(IFNE);
+            code.write(offset >> 8);
+            code.write(offset);
+            code.write(error.toByteArray(), 0, error.size());
+            code.write(DDIV);
+        }
+
+        /**
+         * Writes the instruction pushing the double value.
+         */
+        private void pushDouble(ByteArrayOutputStream code, double value) throws IOException
+        {
+            long bits = Double.doubleToRawLongBits(value);
+            if (bits == Double.doubleToRawLongBits(0.0))
+            {
+                code.write(DCONST_0);
+            }
+            else if (bits == Double.doubleToRawLongBits(1.0))
+            {
+                code.write(DCONST_1);
+            }
+            else
+            {
+                int index = doubleEntry(bits);
+                code.write(LDC2_W);
+                code.write(index >> 8);
+                code.write(index);
+            }
+        }
+
+        /**
+         * Writes the shortest instruction pushing the non negative int value.
+         */
+        private void pushInt(ByteArrayOutputStream code, int value) throws IOException
+        {
+            if (value <= 5)
+            {
+                code.write(ICONST_0 + value);
+            }
+            else if (value <= Byte.MAX_VALUE)
+            {
+                code.write(BIPUSH);
+                code.write(value);
+            }
+            else if (value <= Short.MAX_VALUE)
+            {
+                code.write(SIPUSH);
+                code.write(value >> 8);
+                code.write(value);
+            }
+            else
+            {
+                int index = intEntry(value);
+                code.write(LDC_W);
+                code.write(index >> 8);
+                code.write(index);
+            }
+        }
+
+        /**
+         * Writes a method with a single Code attribute.
+         */
+        private void writeMethod(DataOutputStream out, int access, int name, int type, int codeName, int maxStack,
+                int maxLocals, byte[] code) throws IOException
+        {
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        /**
+         * Adds a UTF8 entry to the constant pool and returns its index.
+         */
+        private int utf8Entry(String value) throws IOException
+        {
+            poolOut.writeByte(UTF8);
+            poolOut.writeUTF(value);
+            return poolSize++;
+        }
+
+        /**
+         * Adds a class entry to the constant pool and returns its index.
+         */
+        private int classEntry(String internalName) throws IOException
+        {
+            int name = utf8Entry(internalName);
+            poolOut.writeByte(CLASS);
+            poolOut.writeShort(name);
+            return poolSize++;
+        }
+
+        /**
+         * Adds a method reference to the constant pool and returns its index.
+         */
+        private int methodEntry(int owner, String name, String type) throws IOException
+        {
+            int nameIndex = utf8Entry(name);
+            int typeIndex = utf8Entry(type);
+            poolOut.writeByte(NAME_AND_TYPE);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(typeIndex);
+            int nameAndType = poolSize++;
+
+            poolOut.writeByte(METHOD_REF);
+            poolOut.writeShort(owner);
+            poolOut.writeShort(nameAndType);
+            return poolSize++;
+        }
+
+        /**
+         * Returns the index of a double entry with the given bits, adding one
+         * to the constant pool if needed. Doubles occupy two pool indices.
+         */
+        private int doubleEntry(long bits) throws IOException
+        {
+            Integer index = doubleEntries.get(bits);
+            if (index == null)
+            {
+                poolOut.writeByte(DOUBLE);
+                poolOut.writeLong(bits);
+                index = poolSize;
+                poolSize += 2;
+                doubleEntries.put(bits, index);
+            }
+            return index;
+        }
+
+        /**
+         * Returns the index of an int entry with the given value, adding one
+         * to the constant pool if needed.
+         */
+        private int intEntry(int value) throws IOException
+        {
+            Integer index = intEntries.get(value);
+            if (index == null)
+            {
+                poolOut.writeByte(INTEGER);
+                poolOut.writeInt(value);
+                index = poolSize++;
+                intEntries.put(value, index);
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,912 @@
+package ssUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A single pass, character level parser for formulas. It splits a formula into
+ * tokens, normalizes and validates each token, enforces the syntax rules of a
+ * Formula and compiles the tokens into a FormulaProgram, all while reading the
+ * formula once from left to right. Constant subexpressions are folded as the
+ * program is compiled.
+ *
+ * Every FormulaFormatException thrown by the parser reports the position in
+ * the formula at which the problem was found.
+ */
+final class FormulaParser
+{
+
+    // Markers for an opening parenthesis, and for the opening parenthesis of
+    // a function call, on the pending operator stack.
+    private static final byte OPEN_PARENTHESIS = -1;
+    private static final byte OPEN_CALL = -2;
+
+    // Beyond this many variables, slots are found through a HashMap rather
+    // than a linear search.
+    private static final int LINEAR_SLOT_SEARCH_LIMIT = 8;
+
+    private final String formula;
+    private final Normalizer normalize;
+    private final IsValid isValid;
+
+    // The index of the next character to read.
+    private int position;
+
+    // The normalized tokens of the formula with white space removed.
+    private final StringBuilder text;
+
+    // Numbers whose normalized form begins with a letter. They are reported
+    // as variables of the formula along with the variable slots.
+    private ArrayList<String> numericVariables;
+
+    // The program being compiled. No formula has more tokens than characters,
+    // so these arrays never need to grow.
+    private final byte[] opcodes;
+    private final int[] operands;
+    private int length;
+
+    private final double[] constants;
+    private int constantCount;
+
+    private final ArrayList<String> slots = new ArrayList<String>();
+    private HashMap<String, Integer> slotIndices;
+
+    // The distinct ranges of the formula, each written as its top left and
+    // bottom right cells separated by ':', and the addresses of those cells.
+    private final ArrayList<String> ranges = new ArrayList<String>();
+    private final ArrayList<Long> rangeBounds = new ArrayList<Long>();
+
+    // The position in text and the name of each reference to a cell, either
+    // a variable or an end of a range, in the order they appear.
+    private final int[] referencePositions;
+    private final String[] referenceNames;
+    private int referenceCount;
+
+    // The aggregate, the number of completed arguments, and the start of the
+    // code of each function call being read, innermost last.
+    private final Aggregate[] callAggregates;
+    private final int[] callArguments;
+    private final int[] callStarts;
+    private int callCount;
+
+    // True if the next token begins an argument of a function call, and true
+    // if the argument being read is a range.
+    private boolean argumentStart;
+    private boolean rangeArgument;
+
+    // Operators and opening parentheses waiting to be emitted.
+    private final byte[] pending;
+    private int pendingCount;
+
+    // Values on the evaluation stack after the emitted opcodes, and the
+    // largest number seen so far.
+    private int depth;
+    private int maxDepth;
+
+    // The index of the first opcode computing each value on the evaluation
+    // stack, used to find the operands of an operator when folding.
+    private final int[] valueStarts;
+
+    // The number of tokens read so far, and the number of opening minus
+    // closing parentheses read so far.
+    private int tokenCount;
+    private int parentheses;
+
+    // True if the next token must be a number, a variable or an opening
+    // parenthesis, false if it must be an operator or a closing parenthesis.
+    private boolean expectOperand = true;
+
+    /**
+     * Creates a parser for formula, using the given normalizer and validator
+     * for its variables.
+     */
+    FormulaParser(String formula, Normalizer normalize, IsValid isValid)
+    {
+        this.formula = formula;
+        this.normalize = normalize;
+        this.isValid = isValid;
+
+        text = new StringBuilder(formula.length() + 8);
+        opcodes = new byte[formula.length()];
+        operands = new int[formula.length()];
+        constants = new double[formula.length()];
+        pending = new byte[formula.length()];
+        valueStarts = new int[formula.length()];
+        referencePositions = new int[formula.length()];
+        referenceNames = new String[formula.length()];
+        callAggregates = new Aggregate[formula.length()];
+        callArguments = new int[formula.length()];
+        callStarts = new int[formula.length()];
+    }
+
+    /**
+     * Parses the formula and returns its compiled program, which is shared
+     * with every other formula with the same normalized text. If the formula
+     * is invalid, throws a FormulaFormatException with an explanatory message.
+     */
+    FormulaProgram parse()
+    {
+        int end = formula.length();
+        while (position < end)
+        {
+            char c = formula.charAt(position);
+            if (isWhiteSpace(c))
+            {
+                position++;
+            }
+            else if (c == '(')
+            {
+                readOpeningParenthesis();
+            }
+            else if (c == ')')
+            {
+                readClosingParenthesis();
+            }
+            else if (c == '+' || c == '-' || c == '*' || c == '/')
+            {
+                readOperator(c);
+            }
+            else if (c == ',')
+            {
+                readComma();
+            }
+            else if (isLetterOrUnderscore(c) || c == '$')
+            {
+                readVariable();
+            }
+            else if (isDigit(c) || (c == '.' && position + 1 < end && isDigit(formula.charAt(position + 1))))
+            {
+                readNumber();
+            }
+            else
+            {
+                throw new FormulaFormatException("Formula contains invalid character '" + c + "' at position "
+                        + position, position);
+            }
+        }
+
+        if (tokenCount == 0)
+        {
+            throw new FormulaFormatException("One Token Rule Violation: Formula must contain at least one token.", 0);
+        }
+        if (expectOperand)
+        {
+            throw new FormulaFormatException("Ending Token Rule Violation: The last token of an expression must be "
+                    + "a number, a variable, or a closing parenthesis.", position);
+        }
+        if (parentheses != 0)
+        {
+            throw new FormulaFormatException("Balanced Parentheses Rule Violation: The total number of opening "
+                    + "parentheses must equal the total number of closing parentheses", position);
+        }
+
+        while (pendingCount > 0)
+        {
+            emitOperator(pending[--pendingCount]);
+        }
+
+        long[] rangeArray = new long[rangeBounds.size()];
+        for (int i = 0; i < rangeArray.length; i++)
+        {
+            rangeArray[i] = rangeBounds.get(i);
+        }
+
+        String[] slotArray = slots.toArray(new String[slots.size()]);
+        String[] variableArray = slotArray;
+        if (numericVariables != null)
+        {
+            for (String variable : numericVariables)
+            {
+                if (!slots.contains(variable))
+                {
+                    slots.add(variable);
+                }
+            }
+            variableArray = slots.toArray(new String[slots.size()]);
+        }
+
+        return FormulaProgram.intern(new FormulaProgram(text.toString(), Arrays.copyOf(opcodes, length),
+                Arrays.copyOf(operands, length), Arrays.copyOf(constants, constantCount), slotArray, variableArray,
+                maxDepth, ranges.toArray(new String[ranges.size()]), rangeArray,
+                Arrays.copyOf(referencePositions, referenceCount), Arrays.copyOf(referenceNames, referenceCount)));
+    }
+
+    /**
+     * Reads "(" and pushes it onto the pending operators.
+     */
+    private void readOpeningParenthesis()
+    {
+        beginOperand();
+        pending[pendingCount++] = OPEN_PARENTHESIS;
+        parentheses++;
+        text.append('(');
+        position++;
+    }
+
+    /**
+     * Reads ")" and emits every operator pending since the matching "(".
+     */
+    private void readClosingParenthesis()
+    {
+        beginOperator();
+        if (--parentheses < 0)
+        {
+            throw new FormulaFormatException("Right Parentheses Rule Violation: Number of closing parentheses "
+                    + "greater than opening parentheses when read from left to right at position " + position,
+                    position);
+        }
+
+        while (pending[pendingCount - 1] != OPEN_PARENTHESIS && pending[pendingCount - 1] != OPEN_CALL)
+        {
+            emitOperator(pending[--pendingCount]);
+        }
+        if (pending[--pendingCount] == OPEN_CALL)
+        {
+            emitCall();
+        }
+
+        text.append(')');
+        position++;
+    }
+
+    /**
+     * Reads "," which ends an argument of the innermost function call, and
+     * emits every operator pending since the call began.
+     */
+    private void readComma()
+    {
+        beginOperator();
+        while (pendingCount > 0 && pending[pendingCount - 1] != OPEN_PARENTHESIS
+                && pending[pendingCount - 1] != OPEN_CALL)
+        {
+            emitOperator(pending[--pendingCount]);
+        }
+        if (pendingCount == 0 || pending[pendingCount - 1] != OPEN_CALL)
+        {
+            throw new FormulaFormatException("Comma Rule Violation: A comma may only separate the arguments of a "
+                    + "function. Found at position " + position, position);
+        }
+        endArgument();
+
+        text.append(',');
+        position++;
+        expectOperand = true;
+        argumentStart = true;
+    }
+
+    /**
+     * Reads the name of an aggregate followed by "(", which begins a call of
+     * that aggregate. The opening parenthesis is at parenthesis.
+     */
+    private void readCall(Aggregate aggregate, int parenthesis)
+    {
+        callAggregates[callCount] = aggregate;
+        callArguments[callCount] = 0;
+        callStarts[callCount++] = length;
+        pending[pendingCount++] = OPEN_CALL;
+        parentheses++;
+
+        text.append(aggregate.name()).append('(');
+        position = parenthesis + 1;
+        argumentStart = true;
+    }
+
+    /**
+     * Reads the second cell of a range whose first cell, token, starts at
+     * start, and emits the range. The ':' separating them is at colon.
+     */
+    private void readRange(String token, int start, int colon, boolean atArgumentStart)
+    {
+        if (!atArgumentStart)
+        {
+            throw new FormulaFormatException("Range Rule Violation: A range must be a whole argument of a function. "
+                    + "Found at position " + start, start);
+        }
+
+        position = skipWhiteSpace(colon + 1);
+        int secondStart = position;
+        while (position < formula.length() && isReferenceCharacter(formula.charAt(position)))
+        {
+            position++;
+        }
+        if (position == secondStart)
+        {
+            throw new FormulaFormatException("Range Rule Violation: A range must end with a cell name. Found at "
+                    + "position " + position, position);
+        }
+
+        String first = normalizeCellName(token, start);
+        String second = normalizeCellName(formula.substring(secondStart, position), secondStart);
+
+        long firstAddress = CellAddress.parseReference(first);
+        long secondAddress = CellAddress.parseReference(second);
+        int firstColumn = Math.min(CellAddress.getColumn(firstAddress), CellAddress.getColumn(secondAddress));
+        int lastColumn = Math.max(CellAddress.getColumn(firstAddress), CellAddress.getColumn(secondAddress));
+        int firstRow = Math.min(CellAddress.getRow(firstAddress), CellAddress.getRow(secondAddress));
+        int lastRow = Math.max(CellAddress.getRow(firstAddress), CellAddress.getRow(secondAddress));
+        String range = CellAddress.toName(firstColumn, firstRow) + ":" + CellAddress.toName(lastColumn, lastRow);
+
+        int index = ranges.indexOf(range);
+        if (index < 0)
+        {
+            index = ranges.size();
+            ranges.add(range);
+            rangeBounds.add(CellAddress.toAddress(firstColumn, firstRow));
+            rangeBounds.add(CellAddress.toAddress(lastColumn, lastRow));
+        }
+
+        addReference(first);
+        text.append(first).append(':');
+        addReference(second);
+        text.append(second);
+
+        // the range pushes its partial aggregate and its number of values
+        Aggregate aggregate = callAggregates[callCount - 1];
+        emit(FormulaProgram.PUSH_RANGE, (index << 3) | aggregate.ordinal());
+        maxDepth = Math.max(maxDepth, ++depth);
+        expectOperand = false;
+        rangeArgument = true;
+    }
+
+    /**
+     * Normalizes and validates the name of a cell at an end of a range, which
+     * must be a cell name in canonical form once normalized, and may be
+     * anchored.
+     */
+    private String normalizeCellName(String token, int start)
+    {
+        if (token.indexOf('$') >= 0)
+        {
+            return normalizeAnchoredReference(token, start);
+        }
+
+        String normalized = normalize.normalize(token);
+        if (CellAddress.parse(normalized) < 0 || !isValid.isValid(normalized))
+        {
+            throw new FormulaFormatException("Range Rule Violation: \"" + token + ",\" at position " + start
+                    + " is not a valid cell name when normalized to \"" + normalized + "\"", start);
+        }
+        return normalized;
+    }
+
+    /**
+     * Normalizes and validates a reference to a cell with anchors, which must
+     * be a cell name in canonical form once its anchors are removed and it is
+     * normalized. Returns the normalized reference with its anchors restored.
+     */
+    private String normalizeAnchoredReference(String token, int start)
+    {
+        // an anchor may only precede the letters or the digits of the name
+        boolean columnAnchored = token.charAt(0) == '$';
+        String name = columnAnchored ? token.substring(1) : token;
+        int anchor = name.indexOf('$');
+        boolean rowAnchored = anchor >= 0;
+        if (rowAnchored && (anchor == 0 || anchor == name.length() - 1 || isDigit(name.charAt(anchor - 1))
+                || !isDigit(name.charAt(anchor + 1)) || name.indexOf('$', anchor + 1) >= 0))
+        {
+            throw new FormulaFormatException("Anchor Rule Violation: \"" + token + ",\" at position " + start
+                    + " may only have a '$' before its column and before its row", start);
+        }
+        if (rowAnchored)
+        {
+            name = name.substring(0, anchor) + name.substring(anchor + 1);
+        }
+
+        String normalized = normalize.normalize(name);
+        long address = CellAddress.parse(normalized);
+        if (address < 0 || !isValid.isValid(normalized))
+        {
+            throw new FormulaFormatException("Anchor Rule Violation: \"" + token + ",\" at position " + start
+                    + " is not a valid cell name when normalized to \"" + normalized + "\"", start);
+        }
+        return CellAddress.toReference(CellAddress.getColumn(address), CellAddress.getRow(address),
+                columnAnchored, rowAnchored);
+    }
+
+    /**
+     * Reads one of the operators +, -, * or /. Operators already pending with
+     * the same or a higher precedence are emitted first, so that operators of
+     * equal precedence are applied from left to right.
+     */
+    private void readOperator(char c)
+    {
+        beginOperator();
+        if (rangeArgument)
+        {
+            throw new FormulaFormatException("Range Rule Violation: A range must be a whole argument of a function. "
+                    + "Found operator at position " + position, position);
+        }
+        byte operator = toOpcode(c);
+        while (pendingCount > 0 && pending[pendingCount - 1] != OPEN_PARENTHESIS
+                && pending[pendingCount - 1] != OPEN_CALL
+                && precedence(pending[pendingCount - 1]) >= precedence(operator))
+        {
+            emitOperator(pending[--pendingCount]);
+        }
+        pending[pendingCount++] = operator;
+
+        text.append(c);
+        position++;
+        expectOperand = true;
+    }
+
+    /**
+     * Reads a letter or underscore followed by zero or more letters,
+     * underscores or digits, then normalizes and validates it. A variable
+     * which normalizes to a number is treated as that number. A cell name
+     * with anchors is read as a variable naming the cell without them.
+     */
+    private void readVariable()
+    {
+        int start = position;
+        boolean atArgumentStart = argumentStart;
+        beginOperand();
+        position++;
+        while (position < formula.length() && isReferenceCharacter(formula.charAt(position)))
+        {
+            position++;
+        }
+
+        String token = formula.substring(start, position);
+
+        // the name of an aggregate followed by "(" calls it, and a cell name
+        // followed by ":" begins a range
+        int next = skipWhiteSpace(position);
+        if (next < formula.length() && formula.charAt(next) == '(' && Aggregate.forName(token) != null)
+        {
+            readCall(Aggregate.forName(token), next);
+            return;
+        }
+        if (next < formula.length() && formula.charAt(next) == ':')
+        {
+            readRange(token, start, next, atArgumentStart);
+            return;
+        }
+        if (token.indexOf('$') >= 0)
+        {
+            String reference = normalizeAnchoredReference(token, start);
+            addReference(reference);
+            text.append(reference);
+            emit(FormulaProgram.PUSH_VARIABLE, slotOf(reference.replace("$", "")));
+            expectOperand = false;
+            return;
+        }
+
+        String normalized = normalize.normalize(token);
+
+        Double number = NumberScanner.tryParse(normalized);
+        if (number != null)
+        {
+            emitConstant(number, start);
+            return;
+        }
+
+        if (!isVariable(normalized))
+        {
+            throw new FormulaFormatException("Token, \"" + token + ",\" at position " + start
+                    + " was invalid when normalized to \"" + normalized + "\"", start);
+        }
+        if (!isValid.isValid(normalized))
+        {
+            throw new FormulaFormatException("Variable, \"" + token + ",\" at position " + start
+                    + " was invalid when normalized to \"" + normalized + "\"", start);
+        }
+
+        addReference(normalized);
+        text.append(normalized);
+        emit(FormulaProgram.PUSH_VARIABLE, slotOf(normalized));
+        expectOperand = false;
+    }
+
+    /**
+     * Reads a non negative number: digits with an optional decimal point, or
+     * a decimal point followed by digits, then an optional exponent.
+     */
+    private void readNumber()
+    {
+        int start = position;
+        beginOperand();
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean sawPoint = false;
+        int end = formula.length();
+        for (; position < end; position++)
+        {
+            char c = formula.charAt(position);
+            if (isDigit(c))
+            {
+                if (mantissa != 0 || c != '0')
+                {
+                    if (digits < 18)
+                    {
+                        mantissa = mantissa * 10 + (c - '0');
+                    }
+                    else
+                    {
+                        scale++;
+                    }
+                    digits++;
+                }
+                if (sawPoint)
+                {
+                    scale--;
+                }
+            }
+            else if (c == '.' && !sawPoint)
+            {
+                sawPoint = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        // an exponent is only part of the number if it has digits
+        int exponent = 0;
+        if (position < end && (formula.charAt(position) == 'e' || formula.charAt(position) == 'E'))
+        {
+            int i = position + 1;
+            boolean negative = false;
+            if (i < end && (formula.charAt(i) == '+' || formula.charAt(i) == '-'))
+            {
+                negative = (formula.charAt(i++) == '-');
+            }
+            if (i < end && isDigit(formula.charAt(i)))
+            {
+                for (; i < end && isDigit(formula.charAt(i)); i++)
+                {
+                    if (exponent < 100000)
+                    {
+                        exponent = exponent * 10 + (formula.charAt(i) - '0');
+                    }
+                }
+                exponent = negative ? -exponent : exponent;
+                position = i;
+            }
+        }
+
+        double value = NumberScanner.toDouble(mantissa, digits, scale + exponent);
+        if (Double.isNaN(value))
+        {
+            value = Double.parseDouble(formula.substring(start, position));
+        }
+        emitConstant(value, start);
+    }
+
+    /**
+     * Checks that an operand may appear at the current position.
+     */
+    private void beginOperand()
+    {
+        if (!expectOperand)
+        {
+            throw new FormulaFormatException("Extra Follow Rule Violation: Any token that immediately follows a "
+                    + "number, a variable, or a closing parenthesis must be either an operator or a closing "
+                    + "parenthesis. Found at position " + position, position);
+        }
+        tokenCount++;
+        argumentStart = false;
+    }
+
+    /**
+     * Checks that an operator or a closing parenthesis may appear at the
+     * current position.
+     */
+    private void beginOperator()
+    {
+        if (tokenCount == 0)
+        {
+            throw new FormulaFormatException("Starting Token Rule Violation: The first token of an expression must "
+                    + "be a number, a variable, or an opening parenthesis", position);
+        }
+        if (expectOperand)
+        {
+            throw new FormulaFormatException("Parentheses Follow Rule Violation: Any token that immediately follows "
+                    + "an opening parenthesis or an operator must be either a number, a variable, or an opening "
+                    + "parenthesis. Found at position " + position, position);
+        }
+        tokenCount++;
+        argumentStart = false;
+    }
+
+    /**
+     * Records a reference to the cell or variable name, which is about to be
+     * appended to the text.
+     */
+    private void addReference(String name)
+    {
+        referencePositions[referenceCount] = text.length();
+        referenceNames[referenceCount++] = name;
+    }
+
+    /**
+     * Ends the argument of the innermost function call which has just been
+     * read. An expression argument is followed by its number of values, 1, so
+     * that every argument leaves a value and a count on the stack.
+     */
+    private void endArgument()
+    {
+        if (!rangeArgument)
+        {
+            constants[constantCount] = 1;
+            emit(FormulaProgram.PUSH_CONSTANT, constantCount++);
+        }
+        rangeArgument = false;
+        callArguments[callCount - 1]++;
+    }
+
+    /**
+     * Ends the last argument of the innermost function call and emits the
+     * call, which pops a value and a count for each argument and pushes the
+     * aggregate.
+     */
+    private void emitCall()
+    {
+        endArgument();
+        callCount--;
+        int arguments = callArguments[callCount];
+        opcodes[length] = FormulaProgram.CALL;
+        operands[length++] = (arguments << 3) | callAggregates[callCount].ordinal();
+        depth -= 2 * arguments - 1;
+        valueStarts[depth - 1] = callStarts[callCount];
+    }
+
+    /**
+     * Emits a number. Its normalized form is the Double.toString of its
+     * value. Like variables, a number whose normalized form begins with a
+     * letter, such as Infinity, must satisfy the validator and is reported
+     * among the variables. The token is the text of the formula from start up
+     * to the current position.
+     */
+    private void emitConstant(double value, int start)
+    {
+        String normalized = Double.toString(value);
+        if (isLetterOrUnderscore(normalized.charAt(0)))
+        {
+            if (!isValid.isValid(normalized))
+            {
+                String token = formula.substring(start, position);
+                throw new FormulaFormatException("Token, \"" + token + ",\" at position " + start
+                        + " was invalid when normalized to \"" + normalized + "\"", start);
+            }
+            if (numericVariables == null)
+            {
+                numericVariables = new ArrayList<String>();
+            }
+            numericVariables.add(normalized);
+        }
+
+        text.append(normalized);
+        constants[constantCount] = value;
+        emit(FormulaProgram.PUSH_CONSTANT, constantCount++);
+        expectOperand = false;
+    }
+
+    /**
+     * Emits an opcode which pushes a value.
+     */
+    private void emit(byte opcode, int operand)
+    {
+        valueStarts[depth] = length;
+        opcodes[length] = opcode;
+        operands[length++] = operand;
+        maxDepth = Math.max(maxDepth, ++depth);
+    }
+
+    /**
+     * Emits an opcode which pops two values and pushes one.
+     *
+     * An operator applied to two constants is folded into a single constant,
+     * unless it is a division by zero, which must still produce a
+     * FormulaError when evaluated. Multiplying by 1, dividing by 1 and
+     * subtracting 0 are dropped, as they never change a value. Adding 0 is
+     * kept, since it turns -0 into 0.
+     */
+    private void emitOperator(byte opcode)
+    {
+        int right = valueStarts[--depth];
+        int left = valueStarts[depth - 1];
+
+        if (isConstant(left, right) && isConstant(right, length))
+        {
+            double a = constants[operands[left]];
+            double b = constants[operands[right]];
+            if (opcode != FormulaProgram.DIVIDE || b != 0)
+            {
+                constants[operands[left]] = apply(opcode, a, b);
+                dropConstant(right);
+                return;
+            }
+        }
+
+        if (isConstant(right, length))
+        {
+            double b = constants[operands[right]];
+            if ((b == 1 && (opcode == FormulaProgram.MULTIPLY || opcode == FormulaProgram.DIVIDE))
+                    || (opcode == FormulaProgram.SUBTRACT && Double.doubleToRawLongBits(b) == 0))
+            {
+                dropConstant(right);
+                return;
+            }
+        }
+
+        if (opcode == FormulaProgram.MULTIPLY && isConstant(left, right) && constants[operands[left]] == 1)
+        {
+            // the left operand is the single opcode at left
+            System.arraycopy(opcodes, right, opcodes, left, length - right);
+            System.arraycopy(operands, right, operands, left, length - right);
+            length--;
+            return;
+        }
+
+        opcodes[length++] = opcode;
+    }
+
+    /**
+     * Returns true if the opcodes from start up to end push a single
+     * constant.
+     */
+    private boolean isConstant(int start, int end)
+    {
+        return end == start + 1 && opcodes[start] == FormulaProgram.PUSH_CONSTANT;
+    }
+
+    /**
+     * Removes the PUSH_CONSTANT opcode at index, which is the last opcode
+     * emitted, releasing its constant if it is the last one in the pool.
+     */
+    private void dropConstant(int index)
+    {
+        if (operands[index] == constantCount - 1)
+        {
+            constantCount--;
+        }
+        length = index;
+    }
+
+    /**
+     * Returns the result of applying the operator opcode to a and b.
+     */
+    private static double apply(byte opcode, double a, double b)
+    {
+        switch (opcode)
+        {
+            case FormulaProgram.ADD:
+                return a + b;
+            case FormulaProgram.SUBTRACT:
+                return a - b;
+            case FormulaProgram.MULTIPLY:
+                return a * b;
+            default:
+                return a / b;
+        }
+    }
+
+    /**
+     * Returns the slot of the variable, adding a new slot if needed.
+     */
+    private int slotOf(String variable)
+    {
+        if (slotIndices != null)
+        {
+            Integer slot = slotIndices.get(variable);
+            if (slot != null)
+            {
+                return slot;
+            }
+        }
+        else
+        {
+            int slot = slots.indexOf(variable);
+            if (slot >= 0)
+            {
+                return slot;
+            }
+        }
+
+        int slot = slots.size();
+        slots.add(variable);
+        if (slotIndices != null)
+        {
+            slotIndices.put(variable, slot);
+        }
+        else if (slots.size() > LINEAR_SLOT_SEARCH_LIMIT)
+        {
+            slotIndices = new HashMap<String, Integer>();
+            for (int i = 0; i < slots.size(); i++)
+            {
+                slotIndices.put(slots.get(i), i);
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the index of the first character at or after index which is not
+     * white space.
+     */
+    private int skipWhiteSpace(int index)
+    {
+        while (index < formula.length() && isWhiteSpace(formula.charAt(index)))
+        {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * Returns the opcode for the operator symbol op.
+     */
+    private static byte toOpcode(char op)
+    {
+        switch (op)
+        {
+            case '+':
+                return FormulaProgram.ADD;
+            case '-':
+                return FormulaProgram.SUBTRACT;
+            case '*':
+                return FormulaProgram.MULTIPLY;
+            default:
+                return FormulaProgram.DIVIDE;
+        }
+    }
+
+    /**
+     * Returns the precedence of an operator opcode. Operators with a higher
+     * precedence are applied first.
+     */
+    private static int precedence(byte opcode)
+    {
+        return (opcode == FormulaProgram.MULTIPLY || opcode == FormulaProgram.DIVIDE) ? 2 : 1;
+    }
+
+    /**
+     * Returns true if s is a letter or underscore followed by zero or more
+     * letters, underscores or digits.
+     */
+    private static boolean isVariable(String s)
+    {
+        if (s.isEmpty() || !isLetterOrUnderscore(s.charAt(0)))
+        {
+            return false;
+        }
+        for (int i = 1; i < s.length(); i++)
+        {
+            if (!isVariableCharacter(s.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isWhiteSpace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetterOrUnderscore(char c)
+    {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    private static boolean isVariableCharacter(char c)
+    {
+        return isLetterOrUnderscore(c) || isDigit(c);
+    }
+
+    private static boolean isReferenceCharacter(char c)
+    {
+        return isVariableCharacter(c) || c == '$';
+    }
+}
@@ -0,0 +1,717 @@
+package ssUtils;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * A compiled form of a Formula. FormulaParser translates the tokens of a
+ * formula once, at construction, into a postfix program made of an opcode
+ * array, a parallel operand array, a pool of double constants and a table of
+ * variable slots.
+ *
+ * Evaluating a FormulaProgram runs the opcodes over a primitive double stack
+ * which is reused between evaluations, so no objects are allocated unless a
+ * lookup throws an exception. Divisions by zero, and the errors an IntLookup
+ * reports through NaN, are returned as shared FormulaError instances.
+ *
+ * Programs are executed in two tiers. Every program starts out interpreted.
+ * Once it has been evaluated FormulaJit.THRESHOLD times it is considered hot
+ * and FormulaJit generates bytecode for it, which is used from then on. The
+ * interpreter remains the fallback for programs that cannot be compiled and
+ * for evaluations whose variables cannot all be looked up.
+ *
+ * Programs are immutable apart from their execution tier, and are interned by
+ * their normalized text, so every live Formula with the same text shares one
+ * program.
+ */
+final class FormulaProgram
+{
+
+    // Opcodes understood by the evaluation loop. PUSH_CONSTANT and
+    // PUSH_VARIABLE take an operand which indexes the constant pool or the
+    // variable slots respectively. The arithmetic opcodes pop two values and
+    // push the result of applying the operator.
+    static final byte PUSH_CONSTANT = 0;
+    static final byte PUSH_VARIABLE = 1;
+    static final byte ADD = 2;
+    static final byte SUBTRACT = 3;
+    static final byte MULTIPLY = 4;
+    static final byte DIVIDE = 5;
+
+    // Opcodes for calls of aggregates. Every argument of a call leaves a
+    // partial aggregate and its number of values on the stack. PUSH_RANGE
+    // pushes both for a range; its operand is the index of the range shifted
+    // left by three, combined with the ordinal of the aggregate called. CALL
+    // pops the pairs of every argument and pushes the aggregate; its operand
+    // is the number of arguments shifted left by three, combined with the
+    // ordinal of the aggregate.
+    static final byte PUSH_RANGE = 6;
+    static final byte CALL = 7;
+
+    // One evaluation stack per thread, shared by every program evaluated on
+    // that thread.
+    private static final ThreadLocal<EvaluationStack> stacks = ThreadLocal.withInitial(EvaluationStack::new);
+
+    // Every live program keyed by its text. Each key is the text instance of
+    // its program and is only weakly held, so an entry is dropped once no
+    // Formula uses its program.
+    private static final WeakHashMap<String, WeakReference<FormulaProgram>> internTable
+            = new WeakHashMap<String, WeakReference<FormulaProgram>>();
+
+    // The normalized tokens of the formula joined without white space, and
+    // its hash code.
+    private final String text;
+    private final int hash;
+
+    // The distinct normalized variables of the formula.
+    private final List<String> variables;
+
+    // The opcodes of this program in postfix order.
+    private final byte[] opcodes;
+
+    // The operand of each opcode. Unused by operators.
+    private final int[] operands;
+
+    // Numeric literals referenced by PUSH_CONSTANT.
+    private final double[] constants;
+
+    // Normalized variable names referenced by PUSH_VARIABLE.
+    private final String[] slots;
+
+    // The largest number of values on the stack at any point of evaluation.
+    private final int maxStackDepth;
+
+    // True if the program has no opcodes but arithmetic, so no calls or
+    // ranges.
+    private final boolean arithmetic;
+
+    // The distinct ranges of the formula, each written as its top left and
+    // bottom right cells separated by ':', and the addresses of those two
+    // cells for each range.
+    private final List<String> ranges;
+    private final long[] rangeBounds;
+
+    // The position in text and the name of each reference to a cell, either
+    // a variable or an end of a range, in the order they appear.
+    private final int[] referencePositions;
+    private final String[] referenceNames;
+
+    // The number of times this program has been interpreted.
+    private int evaluations;
+
+    // True once this program has been handed to FormulaJit.
+    private volatile boolean compileAttempted;
+
+    // The bytecode generated for this program, or null if it has not been
+    // compiled.
+    private volatile CompiledExpression compiled;
+
+    /**
+     * Creates a program from its already compiled parts.
+     */
+    FormulaProgram(String text, byte[] opcodes, int[] operands, double[] constants, String[] slots,
+            String[] variables, int maxStackDepth, String[] ranges, long[] rangeBounds, int[] referencePositions,
+            String[] referenceNames)
+    {
+        this.text = text;
+        this.hash = text.hashCode();
+        this.variables = Collections.unmodifiableList(Arrays.asList(variables));
+        this.opcodes = opcodes;
+        this.operands = operands;
+        this.constants = constants;
+        this.slots = slots;
+        this.maxStackDepth = maxStackDepth;
+        this.ranges = Collections.unmodifiableList(Arrays.asList(ranges));
+        this.rangeBounds = rangeBounds;
+        this.referencePositions = referencePositions;
+        this.referenceNames = referenceNames;
+
+        boolean onlyArithmetic = true;
+        for (byte opcode : opcodes)
+        {
+            onlyArithmetic &= opcode != PUSH_RANGE && opcode != CALL;
+        }
+        arithmetic = onlyArithmetic;
+    }
+
+    /**
+     * Returns the live program with the same text as program if there is
+     * one, otherwise records program as the live program for its text and
+     * returns it.
+     */
+    static FormulaProgram intern(FormulaProgram program)
+    {
+        synchronized (internTable)
+        {
+            WeakReference<FormulaProgram> reference = internTable.get(program.text);
+            FormulaProgram existing = (reference == null) ? null : reference.get();
+            if (existing != null)
+            {
+                return existing;
+            }
+
+            // drop any stale entry first, as put keeps the existing key and
+            // that key may not be the text of the new program
+            internTable.remove(program.text);
+            internTable.put(program.text, new WeakReference<FormulaProgram>(program));
+            return program;
+        }
+    }
+
+    /**
+     * Returns the normalized text of this program.
+     */
+    String getText()
+    {
+        return text;
+    }
+
+    /**
+     * Returns a read only list of the distinct normalized variables of this
+     * program.
+     */
+    List<String> getVariables()
+    {
+        return variables;
+    }
+
+    /**
+     * Returns a read only list of the distinct ranges of this program.
+     */
+    List<String> getRanges()
+    {
+        return ranges;
+    }
+
+    /**
+     * Returns the text of this program with every variable or end of a range
+     * v replaced by rename.normalize(v), or null if rename returns null for
+     * any of them.
+     */
+    String getText(Normalizer rename)
+    {
+        StringBuilder renamed = new StringBuilder(text.length() + 8 * referencePositions.length);
+        int copied = 0;
+        for (int i = 0; i < referencePositions.length; i++)
+        {
+            String name = rename.normalize(referenceNames[i]);
+            if (name == null)
+            {
+                return null;
+            }
+            renamed.append(text, copied, referencePositions[i]).append(name);
+            copied = referencePositions[i] + referenceNames[i].length();
+        }
+        renamed.append(text, copied, text.length());
+        return renamed.toString();
+    }
+
+    /**
+     * Returns true if this program never looks up a variable, so that it
+     * always evaluates to the same value.
+     */
+    boolean isConstant()
+    {
+        return slots.length == 0 && ranges.isEmpty();
+    }
+
+    /**
+     * Returns the number of opcodes of this program, which is about how much
+     * work evaluating it takes.
+     */
+    int size()
+    {
+        return opcodes.length;
+    }
+
+    /**
+     * Returns true if this program does nothing but arithmetic on a single
+     * variable, so that it can be run by iterate.
+     */
+    boolean isIterable()
+    {
+        return arithmetic && slots.length == 1;
+    }
+
+    /**
+     * Returns true if other was compiled from the same normalized text.
+     */
+    boolean sameText(FormulaProgram other)
+    {
+        return this == other || (hash == other.hash && text.equals(other.text));
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    /**
+     * Runs this program, using the lookup functor to determine the values of
+     * variables.
+     *
+     * If lookup throws an exception, or a division by zero is encountered,
+     * returns a FormulaError. Otherwise returns the value of the program as a
+     * Double.
+     */
+    Object evaluate(Lookup lookup)
+    {
+        return evaluate(lookup, null, null);
+    }
+
+    /**
+     * Runs this program, using the lookup functor to determine the value of
+     * the variable in each slot from the id ids[slot].
+     *
+     * If lookup throws an exception, or a division by zero is encountered,
+     * returns a FormulaError. Otherwise returns the value of the program as a
+     * Double.
+     */
+    Object evaluate(IntLookup lookup, int[] ids)
+    {
+        return evaluate(null, lookup, ids);
+    }
+
+    /**
+     * Runs this program, which must be iterable, count times, the first with
+     * value as the value of its variable and each other with the result of
+     * the one before, and stores the results in results from index 0. Stops
+     * before a result which is NaN or a division by zero, and returns the
+     * number of results stored.
+     *
+     * Nothing is boxed, and the runs count towards compiling the program as
+     * evaluations do, so the cells of a chain sharing a formula are
+     * calculated as a loop of double arithmetic.
+     */
+    int iterate(double value, double[] results, int count)
+    {
+        CompiledExpression expression = null;
+        if (FormulaJit.isEnabled())
+        {
+            expression = compiled;
+            if (expression == null && !compileAttempted && (evaluations += count) >= FormulaJit.THRESHOLD)
+            {
+                expression = compile();
+            }
+        }
+
+        EvaluationStack stack = stacks.get();
+        int base = stack.reserve(Math.max(maxStackDepth, 2));
+        double[] values = stack.values;
+        try
+        {
+            for (int i = 0; i < count; i++)
+            {
+                double result;
+                if (expression != null)
+                {
+                    values[base] = value;
+                    values[base + 1] = 0;
+                    result = expression.evaluate(values, base);
+                    if (values[base + 1] != 0)
+                    {
+                        return i;
+                    }
+                }
+                else
+                {
+                    result = interpret(value, values, base);
+                }
+                if (result != result)
+                {
+                    return i;
+                }
+                results[i] = value = result;
+            }
+            return count;
+        }
+        finally
+        {
+            stack.release(base);
+        }
+    }
+
+    /**
+     * Interprets the opcodes of this program, which must be iterable, with
+     * value as the value of its variable, on the stack values from base.
+     * Returns NaN on a division by zero.
+     */
+    private double interpret(double value, double[] values, int base)
+    {
+        int top = base;
+        for (int pc = 0; pc < opcodes.length; pc++)
+        {
+            switch (opcodes[pc])
+            {
+                case PUSH_CONSTANT:
+                    values[top++] = constants[operands[pc]];
+                    break;
+                case PUSH_VARIABLE:
+                    values[top++] = value;
+                    break;
+                case ADD:
+                    top--;
+                    values[top - 1] += values[top];
+                    break;
+                case SUBTRACT:
+                    top--;
+                    values[top - 1] -= values[top];
+                    break;
+                case MULTIPLY:
+                    top--;
+                    values[top - 1] *= values[top];
+                    break;
+                case DIVIDE:
+                    top--;
+                    if (values[top] == 0)
+                    {
+                        return Double.NaN;
+                    }
+                    values[top - 1] /= values[top];
+                    break;
+            }
+        }
+        return values[base];
+    }
+
+    /**
+     * Runs this program in its current execution tier. Variables are looked
+     * up by name through lookup if ids is null, and by id through intLookup
+     * otherwise.
+     */
+    private Object evaluate(Lookup lookup, IntLookup intLookup, int[] ids)
+    {
+        if (!FormulaJit.isEnabled())
+        {
+            return interpret(lookup, intLookup, ids);
+        }
+
+        CompiledExpression expression = compiled;
+        if (expression == null)
+        {
+            if (compileAttempted || ++evaluations < FormulaJit.THRESHOLD)
+            {
+                return interpret(lookup, intLookup, ids);
+            }
+            expression = compile();
+            if (expression == null)
+            {
+                return interpret(lookup, intLookup, ids);
+            }
+        }
+
+        Object value = run(expression, lookup, intLookup, ids);
+        return value != null ? value : interpret(lookup, intLookup, ids);
+    }
+
+    /**
+     * Looks up the value of the variable in slot, by name through lookup if
+     * ids is null, and by id through intLookup otherwise.
+     */
+    private double lookup(int slot, Lookup lookup, IntLookup intLookup, int[] ids)
+    {
+        return (ids == null) ? lookup.lookup(slots[slot]) : intLookup.lookup(ids[slot]);
+    }
+
+    /**
+     * Returns the error reported by intLookup for the variable in slot, whose
+     * looked up value is value, or null if the variable has a value. Only a
+     * NaN looked up by id can stand for an error.
+     */
+    private static FormulaError errorOf(int slot, double value, IntLookup intLookup, int[] ids)
+    {
+        return (value == value || ids == null) ? null : intLookup.getError(ids[slot]);
+    }
+
+    /**
+     * Compiles this program to bytecode unless that has already been
+     * attempted. Returns the compiled expression or null if the program could
+     * not be compiled.
+     */
+    private synchronized CompiledExpression compile()
+    {
+        if (!compileAttempted)
+        {
+            compiled = FormulaJit.compile(opcodes, operands, constants, slots.length, maxStackDepth);
+            compileAttempted = true;
+        }
+        return compiled;
+    }
+
+    /**
+     * Looks up every variable slot, then runs the compiled expression over
+     * them. Returns null if a variable has no value, so that the interpreter
+     * can report the error exactly as it would have occurred.
+     */
+    private Object run(CompiledExpression expression, Lookup lookup, IntLookup intLookup, int[] ids)
+    {
+        EvaluationStack stack = stacks.get();
+        int base = stack.reserve(slots.length + 1);
+
+        try
+        {
+            for (int slot = 0; slot < slots.length; slot++)
+            {
+                double value;
+                try
+                {
+                    value = lookup(slot, lookup, intLookup, ids);
+                }
+                catch (Exception e)
+                {
+                    return null;
+                }
+                if (errorOf(slot, value, intLookup, ids) != null)
+                {
+                    return null;
+                }
+                stack.values[base + slot] = value;
+            }
+
+            double[] values = stack.values;
+            values[base + slots.length] = 0;
+            double result = expression.evaluate(values, base);
+            if (values[base + slots.length] != 0)
+            {
+                return FormulaError.DIVIDE_BY_ZERO;
+            }
+            return result;
+        }
+        finally
+        {
+            stack.release(base);
+        }
+    }
+
+    /**
+     * Interprets the opcodes of this program. Variables are looked up, and
+     * operators applied, in the same order as they appear in the formula.
+     */
+    private Object interpret(Lookup lookup, IntLookup intLookup, int[] ids)
+    {
+        EvaluationStack stack = stacks.get();
+        int base = stack.reserve(maxStackDepth);
+        double[] values = stack.values;
+        int top = base;
+
+        try
+        {
+            for (int pc = 0; pc < opcodes.length; pc++)
+            {
+                switch (opcodes[pc])
+                {
+                    case PUSH_CONSTANT:
+                        values[top++] = constants[operands[pc]];
+                        break;
+                    case PUSH_VARIABLE:
+                        double value;
+                        try
+                        {
+                            value = lookup(operands[pc], lookup, intLookup, ids);
+                        }
+                        catch (Exception e)
+                        {
+                            return new FormulaError(e.getMessage());
+                        }
+                        FormulaError error = errorOf(operands[pc], value, intLookup, ids);
+                        if (error != null)
+                        {
+                            return error;
+                        }
+                        // a lookup may evaluate other formulas on this thread,
+                        // which can replace the underlying array
+                        values = stack.values;
+                        values[top++] = value;
+                        break;
+                    case ADD:
+                        top--;
+                        values[top - 1] += values[top];
+                        break;
+                    case SUBTRACT:
+                        top--;
+                        values[top - 1] -= values[top];
+                        break;
+                    case MULTIPLY:
+                        top--;
+                        values[top - 1] *= values[top];
+                        break;
+                    case DIVIDE:
+                        top--;
+                        if (values[top] == 0)
+                        {
+                            return FormulaError.DIVIDE_BY_ZERO;
+                        }
+                        values[top - 1] /= values[top];
+                        break;
+                    case PUSH_RANGE:
+                        double partial;
+                        double count;
+                        try
+                        {
+                            int range = operands[pc] >> 3;
+                            Aggregate aggregate = Aggregate.of(operands[pc] & 7);
+                            if (ids == null)
+                            {
+                                double[] aggregates = aggregate(range, lookup);
+                                partial = aggregates[aggregate == Aggregate.AVERAGE ? 0 : aggregate.ordinal()];
+                                count = aggregates[Aggregate.COUNT.ordinal()];
+                            }
+                            else
+                            {
+                                int id = ids[variables.size() + range];
+                                partial = (aggregate == Aggregate.COUNT) ? 0
+                                        : intLookup.aggregate(id, aggregate == Aggregate.AVERAGE ? Aggregate.SUM : aggregate);
+                                count = (aggregate == Aggregate.SUM) ? 0 : intLookup.aggregate(id, Aggregate.COUNT);
+                            }
+                        }
+                        catch (Exception e)
+                        {
+                            return new FormulaError(e.getMessage());
+                        }
+                        values = stack.values;
+                        values[top++] = partial;
+                        values[top++] = count;
+                        break;
+                    case CALL:
+                        int arguments = operands[pc] >> 3;
+                        top -= 2 * arguments;
+                        Object result = call(Aggregate.of(operands[pc] & 7), values, top, arguments);
+                        if (result instanceof FormulaError)
+                        {
+                            return result;
+                        }
+                        values[top++] = (Double) result;
+                        break;
+                }
+            }
+
+            return values[base];
+        }
+        finally
+        {
+            stack.release(base);
+        }
+    }
+
+    /**
+     * Returns the aggregate of the pairs of partial aggregates and counts left
+     * on the stack from index start by each of the arguments of a call, as a
+     * Double or a FormulaError.
+     */
+    private static Object call(Aggregate aggregate, double[] values, int start, int arguments)
+    {
+        int end = start + 2 * arguments;
+        double result = 0;
+        double count = 0;
+        switch (aggregate)
+        {
+            case SUM:
+                for (int i = start; i < end; i += 2)
+                {
+                    result += values[i];
+                }
+                return result;
+            case AVERAGE:
+                for (int i = start; i < end; i += 2)
+                {
+                    result += values[i];
+                    count += values[i + 1];
+                }
+                return (count == 0) ? FormulaError.DIVIDE_BY_ZERO : (Object) (result / count);
+            case MIN:
+            case MAX:
+                boolean found = false;
+                for (int i = start; i < end; i += 2)
+                {
+                    if (values[i + 1] != 0)
+                    {
+                        result = !found ? values[i]
+                                : (aggregate == Aggregate.MIN) ? Math.min(result, values[i]) : Math.max(result, values[i]);
+                        found = true;
+                    }
+                }
+                return result;
+            default:
+                for (int i = start; i < end; i += 2)
+                {
+                    count += values[i + 1];
+                }
+                return count;
+        }
+    }
+
+    /**
+     * Looks up every cell of the range with the given index by name and
+     * returns the sum, an unused value, the minimum, the maximum and the
+     * number of those which have a value, indexed by the ordinals of the
+     * aggregates. Cells which cannot be looked up are ignored.
+     */
+    private double[] aggregate(int range, Lookup lookup)
+    {
+        long first = rangeBounds[2 * range];
+        long last = rangeBounds[2 * range + 1];
+        double[] aggregates = { 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0 };
+        for (int column = CellAddress.getColumn(first); column <= CellAddress.getColumn(last); column++)
+        {
+            for (int row = CellAddress.getRow(first); row <= CellAddress.getRow(last); row++)
+            {
+                double value;
+                try
+                {
+                    value = lookup.lookup(CellAddress.toName(column, row));
+                }
+                catch (Exception e)
+                {
+                    continue;
+                }
+                aggregates[Aggregate.SUM.ordinal()] += value;
+                aggregates[Aggregate.MIN.ordinal()] = Math.min(aggregates[Aggregate.MIN.ordinal()], value);
+                aggregates[Aggregate.MAX.ordinal()] = Math.max(aggregates[Aggregate.MAX.ordinal()], value);
+                aggregates[Aggregate.COUNT.ordinal()]++;
+            }
+        }
+        return aggregates;
+    }
+
+    /**
+     * A growable stack of doubles. Each evaluation reserves a frame on top of
+     * the stack and releases it when done, which allows formulas to be
+     * evaluated from within a lookup on the same thread.
+     */
+    private static class EvaluationStack
+    {
+
+        // The values on this stack. May be replaced by a larger array.
+        double[] values = new double[64];
+
+        // The index of the first unreserved value.
+        int top;
+
+        /**
+         * Reserves size values on top of the stack and returns the index of
+         * the first one.
+         */
+        int reserve(int size)
+        {
+            int base = top;
+            top += size;
+            if (top > values.length)
+            {
+                values = Arrays.copyOf(values, Math.max(top, values.length * 2));
+            }
+            return base;
+        }
+
+        /**
+         * Releases every value reserved since base was returned by reserve.
+         */
+        void release(int base)
+        {
+            top = base;
+        }
+    }
+}
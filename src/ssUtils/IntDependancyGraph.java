@@ -0,0 +1,597 @@
+package ssUtils;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A dependency graph whose nodes are non negative integer ids, such as the ids
+ * of the cells of a spreadsheet, with the same semantics as DependancyGraph:
+ * it is a set of ordered pairs (s,t), where t depends on s, dependents(s) is
+ * the set of all t such that (s,t) is in the graph and dependees(t) is the set
+ * of all s such that (s,t) is in the graph.
+ *
+ * Each direction of the graph is stored in primitive arrays rather than as a
+ * set per node. The adjacency lists of all the nodes are packed one after the
+ * other into a single array in the compressed sparse row layout, followed for
+ * each node by a small overflow array holding edges added since the rows were
+ * last packed. Once the overflow arrays hold as many edges as half the packed
+ * rows, they are packed in with the rows. An edge thus costs two ints, one in
+ * each direction, and the adjacency list of a node is mostly a contiguous run
+ * of ints.
+ *
+ * Removing an edge moves the last edge of the list into its place, so the
+ * order of a list is not the order in which edges were added. A node with
+ * many edges also keeps a hash index from each neighbour to its position in
+ * the list, so that finding or removing an edge never scans a long list.
+ *
+ * The lists may be read without copying them, either by position or by
+ * passing each entry to an IntConsumer. Positions, and the order in which
+ * entries are visited, are only valid until the graph is next changed.
+ */
+public class IntDependancyGraph
+{
+
+    // The adjacency lists of each node, in both directions.
+    private final Adjacency dependents = new Adjacency();
+    private final Adjacency dependees = new Adjacency();
+
+    // The number of ordered pairs in this graph.
+    private int size;
+
+    /**
+     * Returns the number of ordered pairs in this graph.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the number of dependents of s.
+     */
+    public int dependentCount(int s)
+    {
+        return dependents.degree(s);
+    }
+
+    /**
+     * Returns the number of dependees of s.
+     */
+    public int dependeeCount(int s)
+    {
+        return dependees.degree(s);
+    }
+
+    /**
+     * Returns true if s has dependents.
+     */
+    public boolean hasDependents(int s)
+    {
+        return dependents.degree(s) > 0;
+    }
+
+    /**
+     * Returns true if s has dependees.
+     */
+    public boolean hasDependees(int s)
+    {
+        return dependees.degree(s) > 0;
+    }
+
+    /**
+     * Returns a new array of the dependents of s.
+     */
+    public int[] getDependents(int s)
+    {
+        return dependents.toArray(s);
+    }
+
+    /**
+     * Returns a new array of the dependees of s.
+     */
+    public int[] getDependees(int s)
+    {
+        return dependees.toArray(s);
+    }
+
+    /**
+     * Returns the dependent of s at position i, where i is less than
+     * dependentCount(s).
+     */
+    public int getDependent(int s, int i)
+    {
+        return dependents.get(s, i);
+    }
+
+    /**
+     * Returns the dependee of s at position i, where i is less than
+     * dependeeCount(s).
+     */
+    public int getDependee(int s, int i)
+    {
+        return dependees.get(s, i);
+    }
+
+    /**
+     * Passes each dependent of s to action, which must not change this graph.
+     */
+    public void forEachDependent(int s, IntConsumer action)
+    {
+        dependents.forEach(s, action);
+    }
+
+    /**
+     * Passes each dependee of s to action, which must not change this graph.
+     */
+    public void forEachDependee(int s, IntConsumer action)
+    {
+        dependees.forEach(s, action);
+    }
+
+    /**
+     * Returns true if the ordered pair (s, t) is in this graph.
+     */
+    public boolean contains(int s, int t)
+    {
+        // either direction answers it, so search the shorter list
+        if (dependents.degree(s) <= dependees.degree(t))
+        {
+            return dependents.indexOf(s, t) >= 0;
+        }
+        return dependees.indexOf(t, s) >= 0;
+    }
+
+    /**
+     * Adds the ordered pair (s, t) to this graph if it does not already exist.
+     */
+    public void addDependency(int s, int t)
+    {
+        if (!contains(s, t))
+        {
+            dependents.add(s, t);
+            dependees.add(t, s);
+            size++;
+        }
+    }
+
+    /**
+     * Removes the ordered pair (s, t) if it is contained by this graph.
+     */
+    public void removeDependency(int s, int t)
+    {
+        if (contains(s, t))
+        {
+            dependents.remove(s, t);
+            dependees.remove(t, s);
+            size--;
+        }
+    }
+
+    /**
+     * Removes all existing ordered pairs of the form (s,r). Then, for each t in
+     * newDependents, adds the ordered pair (s,t).
+     */
+    public void replaceDependents(int s, int[] newDependents)
+    {
+        int[] oldDependents = dependents.toArray(s);
+        for (int r : oldDependents)
+        {
+            dependees.remove(r, s);
+        }
+        dependents.clear(s);
+        size -= oldDependents.length;
+
+        for (int t : newDependents)
+        {
+            addDependency(s, t);
+        }
+    }
+
+    /**
+     * Removes all existing ordered pairs of the form (r,s). Then, for each t in
+     * newDependees, adds the ordered pair (t,s).
+     */
+    public void replaceDependees(int s, int[] newDependees)
+    {
+        int[] oldDependees = dependees.toArray(s);
+        for (int r : oldDependees)
+        {
+            dependents.remove(r, s);
+        }
+        dependees.clear(s);
+        size -= oldDependees.length;
+
+        for (int t : newDependees)
+        {
+            addDependency(t, s);
+        }
+    }
+
+    /**
+     * The adjacency lists of one direction of the graph. The list of node v
+     * starts with the packed row of v, which holds its first packedLengths[v]
+     * entries from edges[offsets[v]], and continues with its first
+     * overflowLengths[v] entries of overflow[v].
+     *
+     * A packed row only has room left when its overflow is empty, since
+     * removing an entry always moves the last entry of the list, so the list
+     * of every node stays contiguous.
+     */
+    private static final class Adjacency
+    {
+
+        // Nodes with more entries than this keep an index of their positions.
+        private static final int INDEX_THRESHOLD = 16;
+
+        // The overflow arrays are packed into the rows once they hold more
+        // than half as many entries as the rows, plus this many.
+        private static final int PACKING_SLACK = 1024;
+
+        // The start of the packed row of each node, followed by the end of
+        // the last row, and the packed rows themselves.
+        private int[] offsets = new int[1];
+        private int[] edges = new int[0];
+
+        // The number of entries in use in the packed row of each node.
+        private int[] packedLengths = new int[0];
+
+        // The overflow array of each node, null if it has never needed one
+        // since the rows were last packed, and the number of entries in use.
+        private int[][] overflow = new int[0][];
+        private int[] overflowLengths = new int[0];
+        private int overflowTotal;
+
+        // For nodes with many entries, an open addressing hash table from
+        // each entry plus one to its position in the list, stored as pairs.
+        private int[][] indexes = new int[0][];
+
+        /**
+         * Returns the number of entries in the list of v.
+         */
+        int degree(int v)
+        {
+            return (v < packedLengths.length) ? packedLengths[v] + overflowLengths[v] : 0;
+        }
+
+        /**
+         * Returns the position of t in the list of v, or -1 if it is not in
+         * the list.
+         */
+        int indexOf(int v, int t)
+        {
+            if (v >= packedLengths.length)
+            {
+                return -1;
+            }
+            if (indexes[v] != null)
+            {
+                return find(indexes[v], t);
+            }
+
+            int start = offsets[v];
+            for (int i = 0; i < packedLengths[v]; i++)
+            {
+                if (edges[start + i] == t)
+                {
+                    return i;
+                }
+            }
+            int[] extra = overflow[v];
+            for (int i = 0; i < overflowLengths[v]; i++)
+            {
+                if (extra[i] == t)
+                {
+                    return packedLengths[v] + i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns a new array of the list of v.
+         */
+        int[] toArray(int v)
+        {
+            int[] list = new int[degree(v)];
+            if (list.length > 0)
+            {
+                System.arraycopy(edges, offsets[v], list, 0, packedLengths[v]);
+                if (overflowLengths[v] > 0)
+                {
+                    System.arraycopy(overflow[v], 0, list, packedLengths[v], overflowLengths[v]);
+                }
+            }
+            return list;
+        }
+
+        /**
+         * Passes each entry of the list of v to action.
+         */
+        void forEach(int v, IntConsumer action)
+        {
+            if (v >= packedLengths.length)
+            {
+                return;
+            }
+            for (int i = offsets[v], end = offsets[v] + packedLengths[v]; i < end; i++)
+            {
+                action.accept(edges[i]);
+            }
+            int[] extra = overflow[v];
+            for (int i = 0; i < overflowLengths[v]; i++)
+            {
+                action.accept(extra[i]);
+            }
+        }
+
+        /**
+         * Appends t to the list of v, which must not already contain it.
+         */
+        void add(int v, int t)
+        {
+            ensureNode(v);
+            int position = degree(v);
+            if (packedLengths[v] < offsets[v + 1] - offsets[v])
+            {
+                edges[offsets[v] + packedLengths[v]++] = t;
+            }
+            else
+            {
+                if (overflow[v] == null)
+                {
+                    overflow[v] = new int[2];
+                }
+                else if (overflowLengths[v] == overflow[v].length)
+                {
+                    overflow[v] = Arrays.copyOf(overflow[v], 2 * overflow[v].length);
+                }
+                overflow[v][overflowLengths[v]++] = t;
+                overflowTotal++;
+            }
+
+            if (indexes[v] != null && position + 1 <= indexes[v].length / 4)
+            {
+                put(indexes[v], t, position);
+            }
+            else if (position + 1 > INDEX_THRESHOLD)
+            {
+                buildIndex(v);
+            }
+
+            if (overflowTotal > edges.length / 2 + PACKING_SLACK)
+            {
+                pack();
+            }
+        }
+
+        /**
+         * Removes t from the list of v, if it is there, by moving the last
+         * entry of the list into its place.
+         */
+        void remove(int v, int t)
+        {
+            int position = indexOf(v, t);
+            if (position < 0)
+            {
+                return;
+            }
+
+            int last = degree(v) - 1;
+            int moved = get(v, last);
+            set(v, position, moved);
+            if (overflowLengths[v] > 0)
+            {
+                overflowLengths[v]--;
+                overflowTotal--;
+            }
+            else
+            {
+                packedLengths[v]--;
+            }
+
+            if (indexes[v] != null)
+            {
+                if (last < INDEX_THRESHOLD / 2)
+                {
+                    indexes[v] = null;
+                }
+                else
+                {
+                    delete(indexes[v], t);
+                    if (moved != t)
+                    {
+                        put(indexes[v], moved, position);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Removes every entry from the list of v.
+         */
+        void clear(int v)
+        {
+            if (v >= packedLengths.length)
+            {
+                return;
+            }
+            packedLengths[v] = 0;
+            overflowTotal -= overflowLengths[v];
+            overflowLengths[v] = 0;
+            overflow[v] = null;
+            indexes[v] = null;
+        }
+
+        /**
+         * Returns the entry at position in the list of v.
+         */
+        int get(int v, int position)
+        {
+            if (position < packedLengths[v])
+            {
+                return edges[offsets[v] + position];
+            }
+            return overflow[v][position - packedLengths[v]];
+        }
+
+        /**
+         * Sets the entry at position in the list of v.
+         */
+        private void set(int v, int position, int t)
+        {
+            if (position < packedLengths[v])
+            {
+                edges[offsets[v] + position] = t;
+            }
+            else
+            {
+                overflow[v][position - packedLengths[v]] = t;
+            }
+        }
+
+        /**
+         * Makes room for the lists of every node up to v. New nodes have
+         * empty packed rows at the end of the packed rows.
+         */
+        private void ensureNode(int v)
+        {
+            int nodes = packedLengths.length;
+            if (v < nodes)
+            {
+                return;
+            }
+
+            int newNodes = Math.max(v + 1, 2 * nodes);
+            offsets = Arrays.copyOf(offsets, newNodes + 1);
+            Arrays.fill(offsets, nodes + 1, newNodes + 1, offsets[nodes]);
+            packedLengths = Arrays.copyOf(packedLengths, newNodes);
+            overflow = Arrays.copyOf(overflow, newNodes);
+            overflowLengths = Arrays.copyOf(overflowLengths, newNodes);
+            indexes = Arrays.copyOf(indexes, newNodes);
+        }
+
+        /**
+         * Packs every list into new rows with no room to spare, emptying the
+         * overflow arrays. Positions within each list do not change, so the
+         * indexes stay valid.
+         */
+        private void pack()
+        {
+            int nodes = packedLengths.length;
+            int[] newOffsets = new int[nodes + 1];
+            for (int v = 0; v < nodes; v++)
+            {
+                newOffsets[v + 1] = newOffsets[v] + degree(v);
+            }
+
+            int[] newEdges = new int[newOffsets[nodes]];
+            for (int v = 0; v < nodes; v++)
+            {
+                System.arraycopy(edges, offsets[v], newEdges, newOffsets[v], packedLengths[v]);
+                if (overflowLengths[v] > 0)
+                {
+                    System.arraycopy(overflow[v], 0, newEdges, newOffsets[v] + packedLengths[v], overflowLengths[v]);
+                }
+                packedLengths[v] = newOffsets[v + 1] - newOffsets[v];
+                overflow[v] = null;
+                overflowLengths[v] = 0;
+            }
+
+            offsets = newOffsets;
+            edges = newEdges;
+            overflowTotal = 0;
+        }
+
+        /**
+         * Creates an index of the list of v with room for it to double.
+         */
+        private void buildIndex(int v)
+        {
+            int entries = degree(v);
+            int[] index = new int[2 * (Integer.highestOneBit(4 * entries - 1) << 1)];
+            for (int position = 0; position < entries; position++)
+            {
+                put(index, get(v, position), position);
+            }
+            indexes[v] = index;
+        }
+
+        /**
+         * Returns the slot of index at which the search for t starts.
+         */
+        private static int home(int[] index, int t)
+        {
+            int hash = (t + 1) * 0x9E3779B9;
+            return (hash ^ (hash >>> 16)) & (index.length / 2 - 1);
+        }
+
+        /**
+         * Returns the position recorded for t in index, or -1 if there is
+         * none.
+         */
+        private static int find(int[] index, int t)
+        {
+            int mask = index.length / 2 - 1;
+            for (int slot = home(index, t);; slot = (slot + 1) & mask)
+            {
+                int key = index[2 * slot];
+                if (key == 0)
+                {
+                    return -1;
+                }
+                if (key == t + 1)
+                {
+                    return index[2 * slot + 1];
+                }
+            }
+        }
+
+        /**
+         * Records position as the position of t in index.
+         */
+        private static void put(int[] index, int t, int position)
+        {
+            int mask = index.length / 2 - 1;
+            int slot = home(index, t);
+            while (index[2 * slot] != 0 && index[2 * slot] != t + 1)
+            {
+                slot = (slot + 1) & mask;
+            }
+            index[2 * slot] = t + 1;
+            index[2 * slot + 1] = position;
+        }
+
+        /**
+         * Removes t from index, moving back any later entries whose search
+         * would otherwise pass over the emptied slot.
+         */
+        private static void delete(int[] index, int t)
+        {
+            int mask = index.length / 2 - 1;
+            int hole = home(index, t);
+            while (index[2 * hole] != t + 1)
+            {
+                if (index[2 * hole] == 0)
+                {
+                    return;
+                }
+                hole = (hole + 1) & mask;
+            }
+
+            for (int slot = (hole + 1) & mask; index[2 * slot] != 0; slot = (slot + 1) & mask)
+            {
+                // an entry may fill the hole unless its home lies cyclically
+                // after the hole, up to its own slot
+                int home = home(index, index[2 * slot] - 1);
+                boolean between = (hole <= slot) ? (hole < home && home <= slot) : (hole < home || home <= slot);
+                if (!between)
+                {
+                    index[2 * hole] = index[2 * slot];
+                    index[2 * hole + 1] = index[2 * slot + 1];
+                    hole = slot;
+                }
+            }
+            index[2 * hole] = 0;
+        }
+    }
+}
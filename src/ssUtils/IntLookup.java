@@ -0,0 +1,43 @@
+package ssUtils;
+
+/**
+ * The IntLookup interface provides a method which determines the values of
+ * variables that have been resolved to integer ids, so that they can be looked
+ * up without names. Ranges of cells are resolved to ids in the same way, and
+ * are aggregated by the lookup as a whole.
+ */
+public interface IntLookup
+{
+
+    /**
+     * Lookup takes the id of a variable and returns the value of that variable
+     * if one exists. Otherwise lookup may either throw an
+     * IllegalArgumentException or, far more cheaply, return NaN and report the
+     * reason through getError.
+     */
+    public double lookup(int id);
+
+    /**
+     * Called when lookup(id) returns NaN. Returns the FormulaError explaining
+     * why the variable with the given id has no value, or null if its value
+     * really is NaN.
+     */
+    public default FormulaError getError(int id)
+    {
+        return null;
+    }
+
+    /**
+     * Takes the id of a range and returns the given aggregate of the numeric
+     * values of the cells in that range. If the range has no numeric values,
+     * the SUM and COUNT are 0, the MIN is positive infinity, the MAX is
+     * negative infinity and the AVERAGE is NaN.
+     *
+     * Lookups which do not support ranges throw an
+     * UnsupportedOperationException.
+     */
+    public default double aggregate(int id, Aggregate aggregate)
+    {
+        throw new UnsupportedOperationException("Ranges cannot be looked up by id");
+    }
+}
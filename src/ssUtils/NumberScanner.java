@@ -0,0 +1,281 @@
+package ssUtils;
+
+/**
+ * A hand written scanner for the strings accepted by Double.parseDouble. It
+ * classifies and parses a string in a single pass, without regular
+ * expressions or exceptions.
+ *
+ * Decimal strings with at most 15 significant digits and a small exponent are
+ * converted directly, which is exact because both the digits and the power of
+ * ten are exactly representable as doubles. Every other valid string is handed
+ * to Double.parseDouble, so results are always identical to it.
+ */
+public final class NumberScanner
+{
+
+    // Every power of ten which can be represented exactly by a double.
+    private static final double[] POWERS_OF_TEN =
+    {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // The most significant digits the fast conversion path accepts.
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    // Exponents are not accumulated past this bound, which is far outside
+    // the range of a double.
+    private static final int MAX_EXPONENT = 100000;
+
+    private NumberScanner()
+    {
+    }
+
+    /**
+     * Takes in a string s and returns true if s can successfully be parsed to
+     * a Double, else returns false.
+     */
+    public static boolean isDouble(String s)
+    {
+        return tryParse(s) != null;
+    }
+
+    /**
+     * Takes in a string s and returns the same value as Double.valueOf(s) if
+     * s can successfully be parsed to a Double, else returns null.
+     */
+    public static Double tryParse(String s)
+    {
+        if (s == null)
+        {
+            return null;
+        }
+
+        // leading and trailing characters up to ' ' are ignored, as by trim
+        int i = 0;
+        int end = s.length();
+        while (i < end && s.charAt(i) <= ' ')
+        {
+            i++;
+        }
+        while (end > i && s.charAt(end - 1) <= ' ')
+        {
+            end--;
+        }
+        if (i == end)
+        {
+            return null;
+        }
+
+        boolean negative = false;
+        char c = s.charAt(i);
+        if (c == '+' || c == '-')
+        {
+            negative = (c == '-');
+            if (++i == end)
+            {
+                return null;
+            }
+            c = s.charAt(i);
+        }
+
+        if (c == 'N')
+        {
+            return (end - i == 3 && s.startsWith("NaN", i)) ? Double.NaN : null;
+        }
+        if (c == 'I')
+        {
+            if (end - i == 8 && s.startsWith("Infinity", i))
+            {
+                return negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+            }
+            return null;
+        }
+        if (c == '0' && i + 1 < end && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X'))
+        {
+            return isHexadecimal(s, i + 2, end) ? Double.parseDouble(s) : null;
+        }
+
+        // Digits ._opt Digits_opt or . Digits, keeping up to 18 significant
+        // digits in mantissa and counting the rest in digits.
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; i < end; i++)
+        {
+            c = s.charAt(i);
+            if (c >= '0' && c <= '9')
+            {
+                sawDigit = true;
+                if (mantissa != 0 || c != '0')
+                {
+                    if (digits < 18)
+                    {
+                        mantissa = mantissa * 10 + (c - '0');
+                    }
+                    else
+                    {
+                        scale++;
+                    }
+                    digits++;
+                }
+                if (sawPoint)
+                {
+                    scale--;
+                }
+            }
+            else if (c == '.' && !sawPoint)
+            {
+                sawPoint = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (!sawDigit)
+        {
+            return null;
+        }
+
+        // ExponentPart_opt
+        int exponent = 0;
+        if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E'))
+        {
+            boolean negativeExponent = false;
+            if (++i < end && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+            {
+                negativeExponent = (s.charAt(i++) == '-');
+            }
+            int exponentStart = i;
+            for (; i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9'; i++)
+            {
+                if (exponent < MAX_EXPONENT)
+                {
+                    exponent = exponent * 10 + (s.charAt(i) - '0');
+                }
+            }
+            if (i == exponentStart)
+            {
+                return null;
+            }
+            if (negativeExponent)
+            {
+                exponent = -exponent;
+            }
+        }
+
+        // FloatTypeSuffix_opt
+        boolean suffix = false;
+        if (i < end)
+        {
+            c = s.charAt(i);
+            if (c == 'f' || c == 'F' || c == 'd' || c == 'D')
+            {
+                suffix = true;
+                i++;
+            }
+        }
+        if (i != end)
+        {
+            return null;
+        }
+
+        if (suffix)
+        {
+            return Double.parseDouble(s);
+        }
+
+        double value = toDouble(mantissa, digits, scale + exponent);
+        if (Double.isNaN(value))
+        {
+            return Double.parseDouble(s);
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Returns mantissa * 10^exponent if it can be computed exactly, where
+     * digits is the number of significant digits in mantissa. Otherwise
+     * returns NaN.
+     */
+    static double toDouble(long mantissa, int digits, int exponent)
+    {
+        if (mantissa == 0)
+        {
+            return 0.0;
+        }
+        if (digits > MAX_EXACT_DIGITS)
+        {
+            return Double.NaN;
+        }
+        if (exponent >= 0 && exponent < POWERS_OF_TEN.length)
+        {
+            return mantissa * POWERS_OF_TEN[exponent];
+        }
+        if (exponent < 0 && -exponent < POWERS_OF_TEN.length)
+        {
+            return mantissa / POWERS_OF_TEN[-exponent];
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns true if the characters of s from start to end form the part of
+     * a hexadecimal floating point string following its "0x" prefix:
+     * HexDigits ._opt or HexDigits_opt . HexDigits, then a binary exponent
+     * and an optional float type suffix.
+     */
+    private static boolean isHexadecimal(String s, int start, int end)
+    {
+        int i = start;
+        boolean sawDigit = false;
+        boolean sawPoint = false;
+        for (; i < end; i++)
+        {
+            char c = s.charAt(i);
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))
+            {
+                sawDigit = true;
+            }
+            else if (c == '.' && !sawPoint)
+            {
+                sawPoint = true;
+            }
+            else
+            {
+                break;
+            }
+        }
+        if (!sawDigit || i == end || (s.charAt(i) != 'p' && s.charAt(i) != 'P'))
+        {
+            return false;
+        }
+
+        if (++i < end && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+        {
+            i++;
+        }
+        int exponentStart = i;
+        while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9')
+        {
+            i++;
+        }
+        if (i == exponentStart)
+        {
+            return false;
+        }
+
+        if (i < end)
+        {
+            char c = s.charAt(i);
+            if (c == 'f' || c == 'F' || c == 'd' || c == 'D')
+            {
+                i++;
+            }
+        }
+        return i == end;
+    }
+}